@@ -0,0 +1,70 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+import imi.ehealth.fhirlock.PolicyEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of the all-patients request: all base policies combined by {@link imi.ehealth.fhirlock.CheckAllPolDenyUnlessPermitAlg},
+ * the response lists the allowed patients as advices
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 5, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class AllPatientsEvaluationBenchmark {
+
+    private static final int USERS = 100;
+    private static final int USERS_PER_PATIENT = 4;
+
+    @Param({"10", "1000", "100000"})
+    public int patients;
+
+    @Param({"true", "false"})
+    public boolean policyCaches;
+
+    private PolicyEvaluator evaluator;
+    private String[] requests;
+
+    @Setup
+    public void setUp() {
+        //the references of the policy sets are not used by this request
+        SyntheticPolicyStore store = new SyntheticPolicyStore(patients, 1, USERS, USERS_PER_PATIENT);
+        evaluator = BenchmarkEvaluators.create(store, policyCaches);
+
+        requests = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            requests[i] = XacmlRequests.createAllPatientsRequest("doc" + i);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String throughput() {
+        return evaluate();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String latency() {
+        return evaluate();
+    }
+
+    private String evaluate() {
+        return evaluator.evaluate(requests[ThreadLocalRandom.current().nextInt(USERS)]);
+    }
+}
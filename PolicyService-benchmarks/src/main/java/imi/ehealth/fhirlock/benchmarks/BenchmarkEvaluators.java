@@ -0,0 +1,40 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+import imi.ehealth.fhirlock.DecisionCache;
+import imi.ehealth.fhirlock.PolicyEvaluator;
+import imi.ehealth.fhirlock.PolicyStore;
+import imi.ehealth.fhirlock.ServiceConfiguration;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the evaluators of the benchmarks
+ */
+final class BenchmarkEvaluators {
+
+    //kept, so the level isn't lost when the logger is collected
+    private static final Logger serviceLog = Logger.getLogger("imi.ehealth.fhirlock");
+
+    private BenchmarkEvaluators() {
+    }
+
+    /**
+     * create an evaluator on a store; the decision cache is always off, so every call is evaluated
+     * @param store the policy store
+     * @param policyCaches keep compiled policies, base policies and references cached (false: load and compile them on each request)
+     * @return the evaluator
+     */
+    static PolicyEvaluator create(PolicyStore store, boolean policyCaches) {
+        //the evaluator logs every request
+        serviceLog.setLevel(Level.WARNING);
+
+        ServiceConfiguration serviceConfig = ServiceConfiguration.getConfiguration();
+        if (!policyCaches) {
+            serviceConfig.setPolicyCacheMaxWeight(0);
+            serviceConfig.setReferenceCacheMaxWeight(0);
+            serviceConfig.setBasePolicyCache(false);
+        }
+        return new PolicyEvaluator(store, new DecisionCache(0, 0));
+    }
+}
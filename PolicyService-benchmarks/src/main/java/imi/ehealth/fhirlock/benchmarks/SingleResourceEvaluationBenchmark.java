@@ -0,0 +1,84 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+import imi.ehealth.fhirlock.PolicyEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of requests for single resources: policy set of the patient, target matching and the referenced policies
+ * The requests are spread over all patients; with large corpora most of them miss the policy caches.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SingleResourceEvaluationBenchmark {
+
+    private static final int REQUESTS = 4096;
+    private static final int USERS = 100;
+    private static final int USERS_PER_PATIENT = 4;
+
+    @Param({"10", "1000", "100000"})
+    public int patients;
+
+    @Param({"1", "4", "16"})
+    public int referencesPerSet;
+
+    @Param({"true", "false"})
+    public boolean policyCaches;
+
+    private PolicyEvaluator evaluator;
+    private String[] requests;
+
+    @Setup
+    public void setUp() {
+        SyntheticPolicyStore store = new SyntheticPolicyStore(patients, referencesPerSet, USERS, USERS_PER_PATIENT);
+        evaluator = BenchmarkEvaluators.create(store, policyCaches);
+
+        //fixed seed: the same requests in every run
+        Random random = new Random(42);
+        requests = new String[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            int patient = 1 + random.nextInt(patients);
+            int reference = random.nextInt(referencesPerSet);
+            String resourceId = SyntheticPolicyStore.getResourceId(reference);
+            //mostly users on the access list, some without access
+            String user = random.nextInt(4) > 0
+                    ? store.getUser(patient, random.nextInt(USERS_PER_PATIENT)) : "doc" + random.nextInt(USERS);
+            requests[i] = XacmlRequests.createResourceRequest(user, String.valueOf(patient),
+                    SyntheticPolicyStore.getResourceType(reference),
+                    resourceId != null ? resourceId : String.valueOf(10000 + random.nextInt(10000)));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String throughput() {
+        return evaluate();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String latency() {
+        return evaluate();
+    }
+
+    private String evaluate() {
+        return evaluator.evaluate(requests[ThreadLocalRandom.current().nextInt(REQUESTS)]);
+    }
+}
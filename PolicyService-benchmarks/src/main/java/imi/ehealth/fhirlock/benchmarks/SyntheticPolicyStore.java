@@ -0,0 +1,241 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+import imi.ehealth.fhirlock.PolicyStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory policy store with a synthetic corpus in the structure of the mongo sample data
+ * Every patient "1".."n" has a policy set referencing its base policy and a number of resource type
+ * ("urn:patient:1:policies:observation") and resource ("urn:patient:1:policies:condition:8") policies.
+ * Policies are generated deterministically when loaded, so even corpora of 100k patients need little memory;
+ * only the list of all base policies is kept, as it is always loaded as a whole.
+ */
+public class SyntheticPolicyStore implements PolicyStore {
+
+    static final String[] RESOURCE_TYPES = {"Observation", "Condition", "Procedure", "MedicationStatement",
+            "Encounter", "AllergyIntolerance", "DiagnosticReport", "Immunization"};
+
+    private static final String PREFIX = "urn:patient:";
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private final int patients;
+    private final int referencesPerSet;
+    private final int users;
+    private final int usersPerPatient;
+
+    private volatile List<String> basePolicies;
+
+    /**
+     * create a corpus
+     * @param patients number of patients
+     * @param referencesPerSet number of resource type and resource policies referenced by each policy set
+     * @param users number of users ("doc0".."doc<users-1>")
+     * @param usersPerPatient number of users on the access list of each patient
+     */
+    public SyntheticPolicyStore(int patients, int referencesPerSet, int users, int usersPerPatient) {
+        this.patients = patients;
+        this.referencesPerSet = referencesPerSet;
+        this.users = users;
+        this.usersPerPatient = Math.max(1, Math.min(usersPerPatient, users));
+    }
+
+    public int getPatients() {
+        return patients;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * get the resource type of a referenced policy
+     * @param reference index of the reference in the policy set
+     * @return the resource type
+     */
+    static String getResourceType(int reference) {
+        return RESOURCE_TYPES[reference % RESOURCE_TYPES.length];
+    }
+
+    /**
+     * get the resource id of a referenced policy; the first references of a set are resource type policies
+     * @param reference index of the reference in the policy set
+     * @return the resource id or null for a resource type policy
+     */
+    static String getResourceId(int reference) {
+        return reference < RESOURCE_TYPES.length ? null : String.valueOf(reference);
+    }
+
+    /**
+     * get the user of the access list of a patient
+     * @param patient the patient number
+     * @param index index on the access list
+     * @return the user name
+     */
+    String getUser(int patient, int index) {
+        return "doc" + ((patient + index) % users);
+    }
+
+    @Override
+    public List<String> loadPolicySetsByTarget(String target) {
+        int patient = parsePatient(target);
+        return patient < 0 ? Collections.emptyList() : Collections.singletonList(createPolicySet(patient));
+    }
+
+    @Override
+    public List<String> loadPoliciesByType(String type) {
+        if (!"base".equals(type)) {
+            return Collections.emptyList();
+        }
+        if (basePolicies == null) {
+            synchronized (this) {
+                if (basePolicies == null) {
+                    List<String> policies = new ArrayList<>(patients);
+                    for (int patient = 1; patient <= patients; patient++) {
+                        policies.add(createBasePolicy(patient));
+                    }
+                    basePolicies = Collections.unmodifiableList(policies);
+                }
+            }
+        }
+        return basePolicies;
+    }
+
+    @Override
+    public List<String> loadPoliciesByName(String name) {
+        String policy = createPolicy(name);
+        return policy == null ? Collections.emptyList() : Collections.singletonList(policy);
+    }
+
+    @Override
+    public Map<String, List<String>> loadPoliciesByNames(Collection<String> names) {
+        Map<String, List<String>> policies = new HashMap<>();
+        for (String name : names) {
+            String policy = createPolicy(name);
+            if (policy != null) {
+                policies.put(name, Collections.singletonList(policy));
+            }
+        }
+        return policies;
+    }
+
+    /**
+     * create the policy with a name, e.g. urn:patient:1:policies:base
+     * @return the policy xml or null, if the corpus has no policy with this name
+     */
+    private String createPolicy(String name) {
+        String[] urnParts = name.split(":");
+        if (urnParts.length < 5 || !name.startsWith(PREFIX)) {
+            return null;
+        }
+        int patient = parsePatient(urnParts[2]);
+        if (patient < 0) {
+            return null;
+        }
+        if (urnParts[4].equals("base")) {
+            return createBasePolicy(patient);
+        }
+        for (int reference = 0; reference < referencesPerSet; reference++) {
+            if (name.equals(getReferenceName(patient, reference))) {
+                return createReferencedPolicy(patient, reference);
+            }
+        }
+        return null;
+    }
+
+    private int parsePatient(String patientId) {
+        try {
+            int patient = Integer.parseInt(patientId);
+            return patient >= 1 && patient <= patients ? patient : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String getReferenceName(int patient, int reference) {
+        String name = PREFIX + patient + ":policies:" + getResourceType(reference).toLowerCase();
+        String resourceId = getResourceId(reference);
+        return resourceId == null ? name : name + ":" + resourceId;
+    }
+
+    private String createPolicySet(int patient) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<PolicySet xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicySetId=\"Patient").append(patient)
+                .append("\" Version=\"1.0\" PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:permit-unless-deny\">")
+                .append("<Target><AnyOf><AllOf>")
+                .append(match(String.valueOf(patient), "urn:oasis:names:tc:xacml:1.0:resource:patient-id", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource"))
+                .append("</AllOf></AnyOf></Target>")
+                .append("<PolicyIdReference>").append(PREFIX).append(patient).append(":policies:base</PolicyIdReference>");
+        for (int reference = 0; reference < referencesPerSet; reference++) {
+            xml.append("<PolicyIdReference>").append(getReferenceName(patient, reference)).append("</PolicyIdReference>");
+        }
+        return xml.append("</PolicySet>").toString();
+    }
+
+    private String createBasePolicy(int patient) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"").append(PREFIX).append(patient)
+                .append(":policies:base\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:permit-unless-deny\" Version=\"1.0\">")
+                .append("<Target><AnyOf><AllOf>")
+                .append(match(String.valueOf(patient), "urn:oasis:names:tc:xacml:1.0:resource:patient-id", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource"))
+                .append("</AllOf></AnyOf></Target>")
+                //deny unless the user is on the access list
+                .append("<Rule Effect=\"Deny\" RuleId=\"Read_all_data\"><Target><AnyOf><AllOf>")
+                .append(match("GET", "urn:oasis:names:tc:xacml:1.0:action:action-id", "urn:oasis:names:tc:xacml:3.0:attribute-category:action"))
+                .append("</AllOf></AnyOf></Target>")
+                .append("<Condition><Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:not\">")
+                .append("<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-at-least-one-member-of\">")
+                .append("<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-bag\">")
+                .append("<AttributeValue DataType=\"").append(STRING).append("\">Pat").append(patient).append("</AttributeValue>");
+        for (int i = 0; i < usersPerPatient; i++) {
+            xml.append("<AttributeValue DataType=\"").append(STRING).append("\">").append(getUser(patient, i)).append("</AttributeValue>");
+        }
+        xml.append("</Apply>")
+                .append("<AttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\" DataType=\"")
+                .append(STRING).append("\" MustBePresent=\"true\"/>")
+                .append("</Apply></Apply></Condition></Rule>")
+                //the patient id for the all-patients request
+                .append("<AdviceExpressions><AdviceExpression AdviceId=\"urn:ruleInformation\" AppliesTo=\"Permit\">")
+                .append("<AttributeAssignmentExpression AttributeId=\"urn:ruleInformation:resourceid\">")
+                .append("<AttributeValue DataType=\"").append(STRING).append("\">").append(patient).append("</AttributeValue>")
+                .append("</AttributeAssignmentExpression></AdviceExpression></AdviceExpressions>")
+                .append("</Policy>");
+        return xml.toString();
+    }
+
+    private String createReferencedPolicy(int patient, int reference) {
+        String resourceId = getResourceId(reference);
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"").append(getReferenceName(patient, reference))
+                .append("\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:permit-unless-deny\" Version=\"1.0\">")
+                .append("<Target><AnyOf><AllOf>")
+                .append(match(String.valueOf(patient), "urn:oasis:names:tc:xacml:1.0:resource:patient-id", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource"))
+                .append("</AllOf></AnyOf><AnyOf><AllOf>")
+                .append(match(getResourceType(reference), "urn:oasis:names:tc:xacml:1.0:resource:resource-type", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource"))
+                .append("</AllOf></AnyOf>");
+        if (resourceId != null) {
+            xml.append("<AnyOf><AllOf>")
+                    .append(match(resourceId, "urn:oasis:names:tc:xacml:1.0:resource:resource-id", "urn:oasis:names:tc:xacml:3.0:attribute-category:resource"))
+                    .append("</AllOf></AnyOf>");
+        }
+        //one user of the access list must not read these resources
+        xml.append("</Target><Rule Effect=\"Deny\" RuleId=\"Read_not_").append(reference).append("\"><Target><AnyOf><AllOf>")
+                .append(match("GET", "urn:oasis:names:tc:xacml:1.0:action:action-id", "urn:oasis:names:tc:xacml:3.0:attribute-category:action"))
+                .append("</AllOf></AnyOf><AnyOf><AllOf>")
+                .append(match(getUser(patient, reference % usersPerPatient), "urn:oasis:names:tc:xacml:1.0:subject:subject-id", "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject"))
+                .append("</AllOf></AnyOf></Target></Rule></Policy>");
+        return xml.toString();
+    }
+
+    private static String match(String value, String attributeId, String category) {
+        return "<Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">"
+                + "<AttributeValue DataType=\"" + STRING + "\">" + value + "</AttributeValue>"
+                + "<AttributeDesignator AttributeId=\"" + attributeId + "\" Category=\"" + category
+                + "\" DataType=\"" + STRING + "\" MustBePresent=\"true\"/></Match>";
+    }
+}
@@ -0,0 +1,62 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+/**
+ * XACML requests as sent by the HAPI interceptor
+ */
+final class XacmlRequests {
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private XacmlRequests() {
+    }
+
+    /**
+     * request for a single resource of a patient
+     * @param user the requesting user
+     * @param patientId the patient of the resource
+     * @param resourceType the resource type
+     * @param resourceId the resource id
+     * @return the xml xacml request
+     */
+    static String createResourceRequest(String user, String patientId, String resourceType, String resourceId) {
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">"
+                + action()
+                + subject(user)
+                + "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">"
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-type", resourceType)
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:patient-id", patientId)
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-id", resourceId)
+                + "</Attributes></Request>";
+    }
+
+    /**
+     * request for all patients a user is allowed to see (no resource id)
+     * @param user the requesting user
+     * @return the xml xacml request
+     */
+    static String createAllPatientsRequest(String user) {
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">"
+                + action()
+                + subject(user)
+                + "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\">"
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-type", "Patient")
+                + "</Attributes></Request>";
+    }
+
+    private static String action() {
+        return "<Attributes Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:action\">"
+                + attribute("urn:oasis:names:tc:xacml:1.0:action:action-id", "GET")
+                + "</Attributes>";
+    }
+
+    private static String subject(String user) {
+        return "<Attributes Category=\"urn:oasis:names:tc:xacml:1.0:subject-category:access-subject\">"
+                + attribute("urn:oasis:names:tc:xacml:1.0:subject:subject-id", user)
+                + "</Attributes>";
+    }
+
+    private static String attribute(String attributeId, String value) {
+        return "<Attribute AttributeId=\"" + attributeId + "\" IncludeInResult=\"false\">"
+                + "<AttributeValue DataType=\"" + STRING + "\">" + value + "</AttributeValue></Attribute>";
+    }
+}
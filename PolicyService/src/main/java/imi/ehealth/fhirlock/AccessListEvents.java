@@ -0,0 +1,88 @@
+package imi.ehealth.fhirlock;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Publishes access list changes to the connected clients (the HAPI servers caching the access lists)
+ * One text message per change:
+ *  - "patient\t<patientId>\t<user1>;<user2>..\t<time>" the access list of a patient changed, with the users on the
+ *    new list and the time of the change in ms since epoch
+ *  - "all" any access list might have changed
+ *  - "status\twatching" or "status\tnot-watching" whether the changes in the database are watched; sent on connect and
+ *    whenever it changes. While not watching (e.g. no replica set), only /invalidate publishes changes, so clients
+ *    must not rely on the events.
+ */
+@WebSocket
+public class AccessListEvents implements AccessListListener {
+    private static final Logger log = Logger.getLogger( AccessListEvents.class.getName() );
+
+    public static final String PATH = "/accessListEvents";
+
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private boolean watching = false;
+
+    @OnWebSocketConnect
+    public void connected(Session session) {
+        //under the lock of the status, so a new client can't miss a change of it
+        synchronized (this) {
+            sessions.add(session);
+            session.getRemote().sendStringByFuture(getStatusMessage());
+        }
+        log.info("Access list events client connected: " + session.getRemoteAddress());
+    }
+
+    @OnWebSocketClose
+    public void closed(Session session, int statusCode, String reason) {
+        sessions.remove(session);
+    }
+
+    @Override
+    public void accessListChanged(String patientId, List<String> users) {
+        accessListChanged(patientId, users, System.currentTimeMillis());
+    }
+
+    @Override
+    public void accessListChanged(String patientId, List<String> users, long changedMillis) {
+        publish("patient\t" + patientId + "\t" + String.join(";", users) + "\t" + changedMillis);
+    }
+
+    @Override
+    public void allAccessListsChanged() {
+        publish("all");
+    }
+
+    @Override
+    public synchronized void watchingChanged(boolean watching) {
+        this.watching = watching;
+        publish(getStatusMessage());
+    }
+
+    public synchronized boolean isWatching() {
+        return watching;
+    }
+
+    public int getClientCount() {
+        return sessions.size();
+    }
+
+    private String getStatusMessage() {
+        return "status\t" + (watching ? "watching" : "not-watching");
+    }
+
+    private void publish(String message) {
+        for (Session session : sessions) {
+            if (session.isOpen()) {
+                //async: a slow client must not block the change watcher
+                session.getRemote().sendStringByFuture(message);
+            }
+        }
+    }
+}
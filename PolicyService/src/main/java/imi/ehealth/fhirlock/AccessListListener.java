@@ -0,0 +1,38 @@
+package imi.ehealth.fhirlock;
+
+import java.util.List;
+
+/**
+ * Notified about changes of the patient access lists (the accessList of the base policies)
+ */
+public interface AccessListListener {
+
+    /**
+     * the access list of a patient changed
+     * @param patientId the patient
+     * @param users the users on the new access list; users removed from the list are not known
+     */
+    void accessListChanged(String patientId, List<String> users);
+
+    /**
+     * the access list of a patient changed
+     * @param patientId the patient
+     * @param users the users on the new access list; users removed from the list are not known
+     * @param changedMillis time of the change (ms since epoch), e.g. to measure the delay until it's applied
+     */
+    default void accessListChanged(String patientId, List<String> users, long changedMillis) {
+        accessListChanged(patientId, users);
+    }
+
+    /**
+     * any access list might have changed, e.g. after a policy was deleted
+     */
+    void allAccessListsChanged();
+
+    /**
+     * the changes of the access lists are watched or not anymore; while not watching, changes are not notified
+     * @param watching true, if changes are notified from now on
+     */
+    default void watchingChanged(boolean watching) {
+    }
+}
@@ -0,0 +1,116 @@
+package imi.ehealth.fhirlock;
+
+import spark.Route;
+import spark.Spark;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of requests processed at the same time
+ * Requests beyond the limit wait in a bounded queue for a limited time; if the queue is full or the wait times out,
+ * they are rejected right away with 503 and Retry-After instead of piling up in the server's thread pool
+ */
+public class AdmissionController {
+    private static final Logger log = Logger.getLogger( AdmissionController.class.getName() );
+
+    private final Semaphore permits;
+    private final int maxQueued;
+    private final long maxQueueWaitMillis;
+    private final int retryAfterSeconds;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * create a new controller
+     * @param maxInFlight maximum number of requests processed at the same time
+     * @param maxQueued maximum number of requests waiting for processing
+     * @param maxQueueWaitMillis maximum time a request waits for processing
+     * @param retryAfterSeconds value of the Retry-After header of rejected requests
+     */
+    public AdmissionController(int maxInFlight, int maxQueued, long maxQueueWaitMillis, int retryAfterSeconds) {
+        this.permits = new Semaphore(maxInFlight, true);
+        this.maxQueued = maxQueued;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * wrap a route, so it is only processed when admitted
+     * @param route the route
+     * @return the limited route
+     */
+    public Route limit(Route route) {
+        return (request, response) -> {
+            if (!acquire()) {
+                log.warning("Rejected " + request.pathInfo() + " request: overloaded");
+                response.header("Retry-After", String.valueOf(retryAfterSeconds));
+                Spark.halt(503, "Service overloaded, retry later");
+            }
+            try {
+                return route.handle(request, response);
+            } finally {
+                release();
+            }
+        };
+    }
+
+    /**
+     * try to get a permit for processing, waiting in the queue if necessary
+     * @return true, if admitted; false, if the queue is full or the wait timed out
+     */
+    public boolean acquire() {
+        boolean acquired = permits.tryAcquire();
+        if (!acquired) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+            try {
+                acquired = permits.tryAcquire(maxQueueWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                queued.decrementAndGet();
+            }
+            if (!acquired) {
+                rejected.increment();
+                return false;
+            }
+        }
+        inFlight.incrementAndGet();
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * return the permit after processing
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+        permits.release();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,213 @@
+package imi.ehealth.fhirlock;
+
+import org.wso2.balana.AbstractPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiled base policies of all patients, as needed by the all-patients request
+ * Kept apart from the weighted policy cache: the list is always used as a whole, so evicting parts of it makes no sense.
+ * All policies are reloaded after the ttl or {@link #invalidateAll()}; a changed patient only reloads its own base policy.
+ * With a ttl of 0 nothing is cached, all policies are loaded and compiled on every access
+ */
+public class BasePolicyCache {
+    private static final Logger log = Logger.getLogger( BasePolicyCache.class.getName() );
+
+    private final PolicyStore store;
+    private final Function<String, AbstractPolicy> compiler;
+    private final long ttlNanos;
+
+    //the loaded policies, replaced as a whole
+    private volatile Snapshot snapshot;
+    //one load or refresh at a time, the other requests wait for its result
+    private final Object loadLock = new Object();
+
+    //patients whose base policy changed, with the generation of the change
+    private final Map<String, Long> stalePatients = new HashMap<>();
+    private volatile boolean hasStalePatients = false;
+    //incremented on every invalidation; fullGeneration is the one of the last invalidateAll
+    private long generation = 0;
+    private long fullGeneration = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    /**
+     * create an empty cache
+     * @param store the store with the base policies
+     * @param compiler compiles a policy xml, returns null if not loadable
+     * @param ttl time to live of the loaded policies, 0 to disable the cache
+     * @param unit time unit of the ttl
+     */
+    public BasePolicyCache(PolicyStore store, Function<String, AbstractPolicy> compiler, long ttl, TimeUnit unit) {
+        this.store = store;
+        this.compiler = compiler;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * get the compiled base policies of all patients; load them, if expired or changed
+     * @param parallel compile the policies of a full load in parallel
+     * @return the compiled policies
+     */
+    public List<AbstractPolicy> getPolicies(boolean parallel) {
+        if (ttlNanos <= 0) {
+            //disabled: each access loads for itself
+            return new Snapshot(loadAll(parallel), 0).policyList;
+        }
+        Snapshot current = snapshot;
+        if (isCurrent(current)) {
+            hits.increment();
+            return current.policyList;
+        }
+        synchronized (loadLock) {
+            current = snapshot;
+            if (isCurrent(current)) {
+                hits.increment();
+                return current.policyList;
+            }
+            return load(current, parallel).policyList;
+        }
+    }
+
+    private boolean isCurrent(Snapshot current) {
+        return current != null && !hasStalePatients && System.nanoTime() - current.expiresAt < 0;
+    }
+
+    /**
+     * load all policies or only the changed ones
+     */
+    private Snapshot load(Snapshot current, boolean parallel) {
+        long startGeneration;
+        List<String> changedPatients;
+        synchronized (this) {
+            startGeneration = generation;
+            changedPatients = new ArrayList<>(stalePatients.keySet());
+        }
+
+        Snapshot loaded;
+        if (current == null || System.nanoTime() - current.expiresAt >= 0) {
+            long start = System.nanoTime();
+            Map<String, AbstractPolicy> byId = loadAll(parallel);
+            loaded = new Snapshot(byId, System.nanoTime() + ttlNanos);
+            log.info("Loaded " + byId.size() + " base policies in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } else {
+            //replace the base policies of the changed patients, keep the order of the others
+            Map<String, AbstractPolicy> byId = new LinkedHashMap<>(current.byId);
+            for (String patientId : changedPatients) {
+                String name = "urn:patient:" + patientId + ":policies:base";
+                long start = System.nanoTime();
+                List<String> policyXmls = store.loadPoliciesByName(name);
+                Metrics.recordPhase(Metrics.PHASE_FETCH, System.nanoTime() - start);
+                byId.remove(name);
+                for (String policyXml : policyXmls) {
+                    AbstractPolicy policy = compiler.apply(policyXml);
+                    if (policy != null) {
+                        byId.put(policy.getId().toString(), policy);
+                    }
+                }
+            }
+            loaded = new Snapshot(byId, current.expiresAt);
+            refreshes.increment();
+        }
+
+        synchronized (this) {
+            //changes after the start of the load are applied by the next one
+            stalePatients.values().removeIf(changed -> changed <= startGeneration);
+            hasStalePatients = !stalePatients.isEmpty();
+            if (fullGeneration <= startGeneration) {
+                snapshot = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * load and compile the base policies of all patients
+     */
+    private Map<String, AbstractPolicy> loadAll(boolean parallel) {
+        long start = System.nanoTime();
+        List<String> policyXmls = store.loadPoliciesByType("base");
+        Metrics.recordPhase(Metrics.PHASE_FETCH, System.nanoTime() - start);
+        Stream<String> stream = parallel ? policyXmls.parallelStream() : policyXmls.stream();
+        List<AbstractPolicy> policies = stream.map(compiler).filter(Objects::nonNull).collect(Collectors.toList());
+        Map<String, AbstractPolicy> byId = new LinkedHashMap<>();
+        for (AbstractPolicy policy : policies) {
+            byId.put(policy.getId().toString(), policy);
+        }
+        loads.increment();
+        return byId;
+    }
+
+    /**
+     * reload the base policy of a patient on the next access
+     * @param patientId the patient whose policies changed
+     */
+    public synchronized void invalidatePatient(String patientId) {
+        generation++;
+        stalePatients.put(patientId, generation);
+        hasStalePatients = true;
+    }
+
+    /**
+     * reload all base policies on the next access
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        fullGeneration = generation;
+        stalePatients.clear();
+        hasStalePatients = false;
+        snapshot = null;
+    }
+
+    /**
+     * @return number of loaded base policies
+     */
+    public int size() {
+        Snapshot current = snapshot;
+        return current == null ? 0 : current.byId.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of loads of all base policies
+     */
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    /**
+     * @return number of reloads of changed base policies only
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    private static final class Snapshot {
+        private final Map<String, AbstractPolicy> byId;
+        private final List<AbstractPolicy> policyList;
+        private final long expiresAt;
+
+        private Snapshot(Map<String, AbstractPolicy> byId, long expiresAt) {
+            this.byId = byId;
+            this.policyList = Collections.unmodifiableList(new ArrayList<>(byId.values()));
+            this.expiresAt = expiresAt;
+        }
+    }
+}
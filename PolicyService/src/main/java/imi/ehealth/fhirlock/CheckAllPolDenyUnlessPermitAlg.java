@@ -14,6 +14,8 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Custom Policy Combination Algorithm
@@ -41,25 +43,67 @@ public class CheckAllPolDenyUnlessPermitAlg extends PolicyCombiningAlgorithm {
         }
     }
 
+    //evaluates large policy lists in parallel; null for sequential evaluation only
+    private final ForkJoinPool pool;
+    //minimum number of policies for a parallel evaluation
+    private final int parallelThreshold;
+
     /**
      * Standard constructor.
      */
     public CheckAllPolDenyUnlessPermitAlg() {
+        this(null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructor for parallel evaluation of large policy lists
+     * The result is the same as the sequential evaluation
+     * @param pool the pool evaluating the policies
+     * @param parallelThreshold minimum number of policies for a parallel evaluation
+     */
+    public CheckAllPolDenyUnlessPermitAlg(ForkJoinPool pool, int parallelThreshold) {
         super(identifierURI);
 
         if (earlyException != null){
             throw earlyException;
         }
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
     }
 
     @Override
     public AbstractResult combine(EvaluationCtx context, List parameters, List policyElements) {
 
-        List<ObligationResult> denyObligations = new ArrayList<ObligationResult>();
-        List<Advice> denyAdvices = new ArrayList<Advice>();
-        AbstractResult permitResult = null;
+        PartialResult partial;
+        if (pool != null && policyElements.size() >= parallelThreshold) {
+            //the context is shared by the tasks: resolve its lazily created values (current date and time) first,
+            //so the workers only read it; the request attributes are parsed before and lookups of missing
+            //attributes go to the attribute finders without changing the context
+            context.getCurrentDate();
+            context.getCurrentTime();
+            context.getCurrentDateTime();
+            //split into about 4 tasks per thread
+            int leafSize = Math.max(1, policyElements.size() / (pool.getParallelism() * 4));
+            partial = pool.invoke(new CombineTask(context, policyElements, 0, policyElements.size(), leafSize,
+                    EvaluationScope.current()));
+        } else {
+            partial = evaluate(context, policyElements, 0, policyElements.size());
+        }
+
+        // if there is not any value of PERMIT. The return DENY
+        if (partial.permitResult != null) {
+            return partial.permitResult;
+        }
+        return ResultFactory.getFactory().getResult(AbstractResult.DECISION_DENY, partial.denyObligations,
+                partial.denyAdvices, context);
+    }
 
-        for (Object policyElement : policyElements) {
+    /**
+     * evaluate a range of the policies sequentially
+     */
+    private static PartialResult evaluate(EvaluationCtx context, List policyElements, int from, int to) {
+        PartialResult partial = new PartialResult();
+        for (Object policyElement : policyElements.subList(from, to)) {
             AbstractPolicy policy = ((PolicyCombinerElement) (policyElement)).getPolicy();
             //no matching check: this is only used for the which-patients-allowed-request -> no matching required!
             //if we want the matching check here, policy targets must fullfill "Patient"
@@ -67,24 +111,80 @@ public class CheckAllPolDenyUnlessPermitAlg extends PolicyCombiningAlgorithm {
             int value = result.getDecision();
             if (value == AbstractResult.DECISION_PERMIT) {
                 //important part: no stopping here, evaluate all other policies to get all advices
-                if (permitResult == null) {
-                    permitResult = result;
+                if (partial.permitResult == null) {
+                    partial.permitResult = result;
                 } else {
-                    permitResult.getObligations().addAll(result.getObligations());
-                    permitResult.getAdvices().addAll(result.getAdvices());
+                    partial.permitResult.getObligations().addAll(result.getObligations());
+                    partial.permitResult.getAdvices().addAll(result.getAdvices());
                 }
             } else if (value == AbstractResult.DECISION_DENY) {
-                denyObligations.addAll(result.getObligations());
-                denyAdvices.addAll(result.getAdvices());
+                partial.denyObligations.addAll(result.getObligations());
+                partial.denyAdvices.addAll(result.getAdvices());
             }
 
         }
+        return partial;
+    }
 
-        // if there is not any value of PERMIT. The return DENY
-        if (permitResult != null) {
-            return permitResult;
+    /**
+     * obligations and advices of a range of policies
+     */
+    private static class PartialResult {
+        private final List<ObligationResult> denyObligations = new ArrayList<ObligationResult>();
+        private final List<Advice> denyAdvices = new ArrayList<Advice>();
+        //first permit of the range, with the obligations and advices of all later permits
+        private AbstractResult permitResult = null;
+
+        /**
+         * append the result of the following range, keeping the order of the sequential evaluation
+         */
+        private PartialResult merge(PartialResult next) {
+            if (permitResult == null) {
+                permitResult = next.permitResult;
+            } else if (next.permitResult != null) {
+                permitResult.getObligations().addAll(next.permitResult.getObligations());
+                permitResult.getAdvices().addAll(next.permitResult.getAdvices());
+            }
+            denyObligations.addAll(next.denyObligations);
+            denyAdvices.addAll(next.denyAdvices);
+            return this;
+        }
+    }
+
+    /**
+     * evaluates a range of the policies, split in halves until the leaf size is reached
+     * Each task collects its own obligations and advices; they're only merged after joining in policy order.
+     * The only shared state is the evaluation context, which is read-only after {@link #combine} resolved its lazy values
+     */
+    private static class CombineTask extends RecursiveTask<PartialResult> {
+        private final EvaluationCtx context;
+        private final List policyElements;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        //the scope of the request, needed on the worker threads to resolve policy references
+        private final EvaluationScope scope;
+
+        private CombineTask(EvaluationCtx context, List policyElements, int from, int to, int leafSize, EvaluationScope scope) {
+            this.context = context;
+            this.policyElements = policyElements;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.scope = scope;
+        }
+
+        @Override
+        protected PartialResult compute() {
+            if (to - from <= leafSize) {
+                return EvaluationScope.callIn(scope, () -> evaluate(context, policyElements, from, to));
+            }
+            int middle = (from + to) >>> 1;
+            CombineTask left = new CombineTask(context, policyElements, from, middle, leafSize, scope);
+            CombineTask right = new CombineTask(context, policyElements, middle, to, leafSize, scope);
+            right.fork();
+            PartialResult leftResult = left.compute();
+            return leftResult.merge(right.join());
         }
-        return ResultFactory.getFactory().getResult(AbstractResult.DECISION_DENY, denyObligations,
-                denyAdvices, context);
     }
 }
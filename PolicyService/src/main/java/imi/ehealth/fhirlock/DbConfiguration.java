@@ -25,6 +25,34 @@ public class DbConfiguration {
     private String pass;
     private String collection;
 
+    //connection pool settings (times in ms)
+    private int maxPoolSize = 50;
+    private int minPoolSize = 0;
+    private long maxWaitTime = 2000;
+    private long maxIdleTime = 60000;
+    private int connectTimeout = 2000;
+    private int readTimeout = 10000;
+    private long serverSelectionTimeout = 5000;
+
+    private static volatile DbConfiguration configuration;
+
+    /**
+     * get the configuration loaded from the config file; the file is only read once
+     * @return the configuration
+     */
+    public static DbConfiguration getConfiguration() {
+        if (configuration == null) {
+            synchronized (DbConfiguration.class) {
+                if (configuration == null) {
+                    DbConfiguration config = new DbConfiguration();
+                    config.load();
+                    configuration = config;
+                }
+            }
+        }
+        return configuration;
+    }
+
     public String getCollection() {
         return collection;
     }
@@ -73,6 +101,62 @@ public class DbConfiguration {
         this.pass = pass;
     }
 
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public int getMinPoolSize() {
+        return minPoolSize;
+    }
+
+    public void setMinPoolSize(int minPoolSize) {
+        this.minPoolSize = minPoolSize;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    public void setMaxWaitTime(long maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public long getServerSelectionTimeout() {
+        return serverSelectionTimeout;
+    }
+
+    public void setServerSelectionTimeout(long serverSelectionTimeout) {
+        this.serverSelectionTimeout = serverSelectionTimeout;
+    }
+
     /**
      * load configuration from config file
      */
@@ -93,9 +177,26 @@ public class DbConfiguration {
             this.user = doc.getElementsByTagName("user").item(0).getTextContent();
             this.pass = doc.getElementsByTagName("password").item(0).getTextContent();
             this.collection = doc.getElementsByTagName("collection").item(0).getTextContent();
+
+            //optional pool settings
+            this.maxPoolSize = (int) getLong(doc, "maxPoolSize", this.maxPoolSize);
+            this.minPoolSize = (int) getLong(doc, "minPoolSize", this.minPoolSize);
+            this.maxWaitTime = getLong(doc, "maxWaitTime", this.maxWaitTime);
+            this.maxIdleTime = getLong(doc, "maxIdleTime", this.maxIdleTime);
+            this.connectTimeout = (int) getLong(doc, "connectTimeout", this.connectTimeout);
+            this.readTimeout = (int) getLong(doc, "readTimeout", this.readTimeout);
+            this.serverSelectionTimeout = getLong(doc, "serverSelectionTimeout", this.serverSelectionTimeout);
         }
         catch (IOException | ParserConfigurationException | SAXException e) {
             e.printStackTrace();
         }
     }
+
+    private long getLong(Document doc, String tagName, long defaultValue) {
+        NodeList nodes = doc.getElementsByTagName(tagName);
+        if (nodes.getLength() == 0 || nodes.item(0).getTextContent().trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Long.parseLong(nodes.item(0).getTextContent().trim());
+    }
 }
@@ -0,0 +1,98 @@
+package imi.ehealth.fhirlock;
+
+import org.wso2.balana.ctx.AbstractResult;
+import org.wso2.balana.ctx.ResponseCtx;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for xacml responses by normalized request
+ * Responses are dropped after their ttl or as soon as the policies of the requested patient change
+ */
+public class DecisionCache {
+
+    private final ExpiringCache<DecisionKey, String> cache;
+
+    //incremented on every invalidation, so that evaluations started before can't store outdated responses
+    private long generation = 0;
+
+    /**
+     * create a new decision cache
+     * @param maxWeight maximum sum of cached key and response lengths
+     * @param ttl time to live of a decision in seconds
+     */
+    public DecisionCache(long maxWeight, long ttl) {
+        this.cache = new ExpiringCache<>(maxWeight, ttl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * get a cached response
+     * @param key the request key
+     * @return the xml xacml response or null
+     */
+    public String get(DecisionKey key) {
+        return cache.get(key);
+    }
+
+    /**
+     * get the current generation; must be read before evaluating a request that is put afterwards
+     * @return the generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * cache a response, if it is a definite decision and no invalidation happened meanwhile
+     * @param key the request key
+     * @param responseCtx the evaluated response, for its decisions
+     * @param response the xml xacml response
+     * @param evaluatedGeneration generation read before the evaluation
+     */
+    public synchronized void put(DecisionKey key, ResponseCtx responseCtx, String response, long evaluatedGeneration) {
+        if (evaluatedGeneration != generation || response == null || !isDefinite(responseCtx)) {
+            return;
+        }
+        cache.put(key, response, key.length() + response.length());
+    }
+
+    /**
+     * check the decisions of a response: indeterminate ones (e.g. after a database error) are not cached
+     * @param responseCtx the response
+     * @return true, if all results are permit, deny or not applicable
+     */
+    private static boolean isDefinite(ResponseCtx responseCtx) {
+        if (responseCtx == null || responseCtx.getResults().isEmpty()) {
+            return false;
+        }
+        for (AbstractResult result : responseCtx.getResults()) {
+            int decision = result.getDecision();
+            if (decision != AbstractResult.DECISION_PERMIT && decision != AbstractResult.DECISION_DENY
+                    && decision != AbstractResult.DECISION_NOT_APPLICABLE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * drop all decisions which depend on the policies of a patient
+     * @param patientId the patient id
+     */
+    public synchronized void invalidatePatient(String patientId) {
+        generation++;
+        cache.invalidateIf(key -> key.isAllPatients() || patientId.equals(key.getPatientId()));
+    }
+
+    /**
+     * drop all decisions
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        cache.invalidateAll();
+    }
+
+    public ExpiringCache<DecisionKey, String> getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,150 @@
+package imi.ehealth.fhirlock;
+
+import org.wso2.balana.utils.Constants.PolicyConstants;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Normalized key of a xacml request for the decision cache
+ * Contains all request attributes (category, id, value) in a fixed order, so equal requests
+ * map to the same key regardless of attribute order or formatting
+ */
+public final class DecisionKey {
+    private static final String ATTRIBUTE_ID_PATIENT = "urn:oasis:names:tc:xacml:1.0:resource:patient-id";
+
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    private final String key;
+    private final String patientId;
+    private final boolean allPatients;
+
+    private DecisionKey(String key, String patientId, boolean allPatients) {
+        this.key = key;
+        this.patientId = patientId;
+        this.allPatients = allPatients;
+    }
+
+    /**
+     * create the key for a xacml request
+     * @param xacmlRequest the xml xacml request
+     * @return the key or null, if the request can't be cached (invalid xml, multiple decisions, xml content)
+     */
+    public static DecisionKey fromRequest(String xacmlRequest) {
+        List<String> attributes = new ArrayList<>();
+        Set<String> categories = new HashSet<>();
+        String flags = "";
+        String patientId = null;
+        boolean hasResourceId = false;
+
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(xacmlRequest));
+            try {
+                String category = null;
+                String attributeId = null;
+                String includeInResult = null;
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    switch (reader.getLocalName()) {
+                        case "Request":
+                            flags = reader.getAttributeValue(null, "ReturnPolicyIdList") + "|"
+                                    + reader.getAttributeValue(null, "CombinedDecision");
+                            break;
+                        case "MultiRequests":
+                        case "Content":
+                            //more than one decision or xpath content: not a single, comparable decision
+                            return null;
+                        case "Attributes":
+                            category = reader.getAttributeValue(null, "Category");
+                            if (!categories.add(category)) {
+                                //repeated category: multiple decision request
+                                return null;
+                            }
+                            break;
+                        case "Attribute":
+                            attributeId = reader.getAttributeValue(null, "AttributeId");
+                            includeInResult = reader.getAttributeValue(null, "IncludeInResult");
+                            break;
+                        case "AttributeValue":
+                            String dataType = reader.getAttributeValue(null, "DataType");
+                            String value = reader.getElementText().trim();
+                            attributes.add(category + "|" + attributeId + "|" + dataType + "|" + includeInResult + "|" + value);
+
+                            if (PolicyConstants.RESOURCE_CATEGORY_URI.equals(category)) {
+                                if (ATTRIBUTE_ID_PATIENT.equals(attributeId)) {
+                                    patientId = value;
+                                } else if (PolicyConstants.RESOURCE_ID.equals(attributeId)) {
+                                    hasResourceId = true;
+                                }
+                            }
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            return null;
+        }
+
+        Collections.sort(attributes);
+        StringBuilder key = new StringBuilder(flags);
+        for (String attribute : attributes) {
+            key.append('\n').append(attribute);
+        }
+        //without resource id all patients are evaluated (see MongoDbPolicyFinderModule)
+        return new DecisionKey(key.toString(), patientId, !hasResourceId);
+    }
+
+    /**
+     * the patient id of the request
+     * @return patient id or null
+     */
+    public String getPatientId() {
+        return patientId;
+    }
+
+    /**
+     * whether the decision depends on the policies of all patients
+     * @return true for the all-patients request
+     */
+    public boolean isAllPatients() {
+        return allPatients;
+    }
+
+    /**
+     * approximate size of the key
+     * @return the length of the normalized key
+     */
+    public int length() {
+        return key.length();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DecisionKey && key.equals(((DecisionKey) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+}
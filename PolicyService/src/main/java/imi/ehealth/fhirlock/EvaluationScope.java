@@ -0,0 +1,136 @@
+package imi.ehealth.fhirlock;
+
+import org.wso2.balana.AbstractPolicy;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Request scoped state of a single policy evaluation
+ * The scope is bound to the evaluating thread, so concurrent requests never share their attributes or loaded policies
+ */
+public class EvaluationScope {
+    private static final ThreadLocal<EvaluationScope> current = new ThreadLocal<>();
+
+    private final String patientId;
+    private final String resourceType;
+    private final String resourceId;
+
+    //all policies loaded for this request by id
+    private final Map<URI, AbstractPolicy> policies = new ConcurrentHashMap<>();
+
+    //time spent in the policy finder (finding and resolving policies), to separate it from the combining
+    private final LongAdder finderNanos = new LongAdder();
+
+    /**
+     * create a new scope with the attributes of the request
+     * @param patientId the requested patient id
+     * @param resourceType the requested resource type
+     * @param resourceId the requested resource id (null for the all-patients request)
+     */
+    public EvaluationScope(String patientId, String resourceType, String resourceId) {
+        this.patientId = patientId;
+        this.resourceType = resourceType;
+        this.resourceId = resourceId;
+    }
+
+    /**
+     * get the scope of the evaluation running on the current thread
+     * @return the scope or null, if no evaluation is running
+     */
+    public static EvaluationScope current() {
+        return current.get();
+    }
+
+    /**
+     * bind a scope to the current thread
+     * @param scope the scope
+     */
+    public static void begin(EvaluationScope scope) {
+        current.set(scope);
+    }
+
+    /**
+     * remove the scope from the current thread
+     */
+    public static void end() {
+        current.remove();
+    }
+
+    /**
+     * run an action with a scope bound to the current thread, e.g. on a worker thread of a parallel evaluation
+     * The previous binding of the thread is restored afterwards
+     * @param scope the scope
+     * @param action the action
+     * @param <T> type of the result
+     * @return the result of the action
+     */
+    public static <T> T callIn(EvaluationScope scope, Supplier<T> action) {
+        EvaluationScope previous = current.get();
+        current.set(scope);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    /**
+     * get a policy loaded for this request
+     * @param id the policy id
+     * @return the policy or null
+     */
+    public AbstractPolicy getPolicy(URI id) {
+        return policies.get(id);
+    }
+
+    /**
+     * remember a policy loaded for this request
+     * @param id the policy id
+     * @param policy the policy
+     */
+    public void putPolicy(URI id, AbstractPolicy policy) {
+        if (id != null && policy != null) {
+            policies.put(id, policy);
+        }
+    }
+
+    public Map<URI, AbstractPolicy> getPolicies() {
+        return policies;
+    }
+
+    /**
+     * add time spent in the policy finder
+     * @param nanos the duration in ns
+     */
+    public void addFinderNanos(long nanos) {
+        finderNanos.add(nanos);
+    }
+
+    /**
+     * get the time spent in the policy finder for this request
+     * @return the duration in ns
+     */
+    public long getFinderNanos() {
+        return finderNanos.sum();
+    }
+}
@@ -0,0 +1,264 @@
+package imi.ehealth.fhirlock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Bounded in-memory cache with a time to live per entry (a default one or one given for the entry)
+ * Every entry has a weight; if the sum of all weights exceeds the maximum weight,
+ * the least recently used entries are evicted
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExpiringCache<K, V> {
+
+    private final long maxWeight;
+    private final long ttlNanos;
+
+    //access ordered -> iteration starts with the least recently used entry
+    private final LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalWeight = 0;
+
+    //incremented on every invalidation, so that values loaded before can't be put afterwards
+    private long generation = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * create a new cache
+     * @param maxWeight maximum sum of entry weights
+     * @param ttl time to live of an entry
+     * @param unit time unit of the ttl
+     */
+    public ExpiringCache(long maxWeight, long ttl, TimeUnit unit) {
+        this.maxWeight = maxWeight;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * get a cached value
+     * @param key the key
+     * @return the value or null, if not cached or expired
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.isExpired(System.nanoTime())) {
+            removeEntry(key, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * add a value to the cache and evict old entries if necessary
+     * @param key the key
+     * @param value the value
+     * @param weight the weight of the value, e.g. its size
+     */
+    public void put(K key, V value, long weight) {
+        putEntry(key, value, weight, ttlNanos);
+    }
+
+    /**
+     * add a value with its own time to live to the cache and evict old entries if necessary
+     * @param key the key
+     * @param value the value
+     * @param weight the weight of the value, e.g. its size
+     * @param ttl time to live of this entry
+     * @param unit time unit of the ttl
+     */
+    public void put(K key, V value, long weight, long ttl, TimeUnit unit) {
+        putEntry(key, value, weight, unit.toNanos(ttl));
+    }
+
+    /**
+     * get the current generation; must be read before loading a value that is put with {@link #putIfUnchanged}
+     * @return the generation
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * add a value to the cache, if no invalidation happened since it was loaded
+     * @param key the key
+     * @param value the value
+     * @param weight the weight of the value, e.g. its size
+     * @param loadedGeneration the generation read before the value was loaded
+     */
+    public synchronized void putIfUnchanged(K key, V value, long weight, long loadedGeneration) {
+        if (loadedGeneration == generation) {
+            putEntry(key, value, weight, ttlNanos);
+        }
+    }
+
+    /**
+     * add a value with its own time to live to the cache, if no invalidation happened since it was loaded
+     * @param key the key
+     * @param value the value
+     * @param weight the weight of the value, e.g. its size
+     * @param ttl time to live of this entry
+     * @param unit time unit of the ttl
+     * @param loadedGeneration the generation read before the value was loaded
+     */
+    public synchronized void putIfUnchanged(K key, V value, long weight, long ttl, TimeUnit unit, long loadedGeneration) {
+        if (loadedGeneration == generation) {
+            putEntry(key, value, weight, unit.toNanos(ttl));
+        }
+    }
+
+    private synchronized void putEntry(K key, V value, long weight, long entryTtlNanos) {
+        if (weight > maxWeight) {
+            //would evict everything else and still not fit
+            rejected.increment();
+            return;
+        }
+        CacheEntry<V> old = entries.put(key, new CacheEntry<>(value, weight, System.nanoTime() + entryTtlNanos));
+        if (old != null) {
+            totalWeight -= old.weight;
+        }
+        totalWeight += weight;
+        evict();
+    }
+
+    /**
+     * remove a single entry
+     * @param key the key
+     */
+    public synchronized void invalidate(K key) {
+        generation++;
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null) {
+            removeEntry(key, entry);
+        }
+    }
+
+    /**
+     * remove all entries whose key matches
+     * @param filter the key filter
+     */
+    public synchronized void invalidateIf(Predicate<? super K> filter) {
+        generation++;
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> entry = it.next();
+            if (filter.test(entry.getKey())) {
+                it.remove();
+                totalWeight -= entry.getValue().weight;
+            }
+        }
+    }
+
+    /**
+     * remove all entries whose key and value match
+     * @param filter the entry filter
+     */
+    public synchronized void invalidateIf(BiPredicate<? super K, ? super V> filter) {
+        generation++;
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, CacheEntry<V>> entry = it.next();
+            if (filter.test(entry.getKey(), entry.getValue().value)) {
+                it.remove();
+                totalWeight -= entry.getValue().weight;
+            }
+        }
+    }
+
+    /**
+     * remove all entries
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        totalWeight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return totalWeight;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of values not cached because their weight alone exceeds the maximum weight
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * drop expired entries first, then least recently used ones until the weight fits
+     */
+    private void evict() {
+        if (totalWeight <= maxWeight) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            CacheEntry<V> entry = it.next().getValue();
+            if (entry.isExpired(now)) {
+                it.remove();
+                totalWeight -= entry.weight;
+                evictions.increment();
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (totalWeight > maxWeight && it.hasNext()) {
+            CacheEntry<V> entry = it.next().getValue();
+            it.remove();
+            totalWeight -= entry.weight;
+            evictions.increment();
+        }
+    }
+
+    private void removeEntry(K key, CacheEntry<V> entry) {
+        entries.remove(key);
+        totalWeight -= entry.weight;
+    }
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long weight;
+        private final long expiresAt;
+
+        private CacheEntry(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+}
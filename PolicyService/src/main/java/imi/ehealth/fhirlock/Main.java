@@ -1,7 +1,17 @@
 package imi.ehealth.fhirlock;
 
+import org.apache.commons.io.IOUtils;
 import spark.*;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
 import java.util.logging.Logger;
 
 /**
@@ -10,34 +20,172 @@ import java.util.logging.Logger;
 public class Main {
     private static final Logger log = Logger.getLogger( Main.class.getName() );
 
+    //limits the concurrently processed requests, sheds load beyond the queue limit
+    private static AdmissionController admissionController;
+    //pushes access list changes to the HAPI servers
+    private static final AccessListEvents accessListEvents = new AccessListEvents();
+
     public static void main(String[] args) {
+        ServiceConfiguration serviceConfig = ServiceConfiguration.getConfiguration();
+
+        //make sure the policy queries are served by indexes before accepting requests
+        if (serviceConfig.isEnsureIndexes()) {
+            new PolicyIndexes(MongoConnectionManager.getInstance()).bootstrap(serviceConfig.isFailOnCollectionScan());
+        }
+
+        //compile policies before the port is opened, so the service is only reachable when warm
+        if (serviceConfig.isWarmUp()) {
+            PolicyEvaluator.getEvaluator().warmUp();
+        }
+
         //set port
         Spark.port(4567);
+        //bounded server threads
+        Spark.threadPool(serviceConfig.getServerMaxThreads(), serviceConfig.getServerMinThreads(),
+                serviceConfig.getServerIdleTimeout());
+        admissionController = new AdmissionController(serviceConfig.getMaxInFlightRequests(),
+                serviceConfig.getMaxQueuedRequests(), serviceConfig.getMaxQueueWait(), serviceConfig.getRetryAfter());
+
+        //websocket /accessListEvents -> publishes access list changes (must be mapped before the routes)
+        Spark.webSocket(AccessListEvents.PATH, accessListEvents);
 
         //set route "/hello" (just for testing)
         Spark.get("/hello", (req, res) -> "Hello World");
 
         //set route /evaluate -> takes a post request with xacml request-xml as data
-        Spark.post("/evaluate", handleEvaluate);
+        Spark.post("/evaluate", admissionController.limit(handleEvaluate));
 
         //set route /patientAccessList -> takes a request with the username as data
-        Spark.post("/patientAccessList",handlePatientAccess);
+        Spark.post("/patientAccessList", admissionController.limit(handlePatientAccess));
+
+        //set route /accessLists -> returns the access lists of all patients ("<patient>\t<user1>;<user2>" per line)
+        Spark.post("/accessLists", admissionController.limit(handleAccessLists));
+
+        //set route /invalidate -> takes a request with the patient id whose policies changed (empty: all patients)
+        Spark.post("/invalidate", handleInvalidate);
+
+        //set route /status -> returns the mongo connection pool and request statistics
+        Spark.get("/status", handleStatus);
+
+        //set route /metrics -> returns the metrics in prometheus text format
+        Spark.get("/metrics", handleMetrics);
+
+        //invalidate cached policies and decisions on changes in the database
+        if (serviceConfig.isWatchPolicyChanges()) {
+            PolicyChangeWatcher.start(new MongoQuery(), PolicyEvaluator.getEvaluator()).addAccessListListener(accessListEvents);
+        }
     }
 
     public static Route handleEvaluate = (request, response) -> {
         log.info("/evaluate request..");
-        String requestXml = request.body();
+        String requestXml = readBody(request);
+        //compressed response, if the client accepts it (spark compresses the body)
+        if (acceptsGzip(request)) {
+            response.header("Content-Encoding", "gzip");
+        }
         return PolicyEvaluator.getEvaluator().evaluate(requestXml);
 
     };
 
     public static Route handlePatientAccess = (request, response) -> {
         log.info("/patientAccessList request..");
-        String userName = request.body();
-        DbConfiguration dbConfig = new DbConfiguration();
-        dbConfig.load();
-        MongoQuery query = new MongoQuery(dbConfig);
-        return String.join(";", query.getPatientAccessList(userName));
+        String userName = readBody(request);
+        //optional paging: the next page starts after the last patient id of the previous one
+        String after = request.queryParams("after");
+        int limit = 0;
+        if (request.queryParams("limit") != null) {
+            try {
+                limit = Integer.parseInt(request.queryParams("limit"));
+            } catch (NumberFormatException e) {
+                Spark.halt(400, "invalid limit");
+            }
+            if (limit < 0) {
+                Spark.halt(400, "invalid limit");
+            }
+        }
+
+        //stream the ids from the cursor to the client (chunked) instead of building the whole list in memory
+        response.type("text/plain");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+        new MongoQuery().writePatientAccessList(userName, after == null || after.isEmpty() ? null : after,
+                limit,
+                ServiceConfiguration.getConfiguration().getPatientAccessListBatchSize(), writer);
+        writer.flush();
+        return "";
+    };
+
+    public static Route handleAccessLists = (request, response) -> {
+        log.info("/accessLists request..");
+        //stream the lists from the cursor to the client, like /patientAccessList
+        response.type("text/plain");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+        try {
+            new MongoQuery().forEachAccessList(ServiceConfiguration.getConfiguration().getPatientAccessListBatchSize(), (patientId, users) -> {
+                try {
+                    writer.write(patientId + "\t" + String.join(";", users) + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+        return "";
+    };
 
+    public static Route handleInvalidate = (request, response) -> {
+        log.info("/invalidate request..");
+        String patientId = readBody(request).trim();
+        if (patientId.isEmpty()) {
+            PolicyEvaluator.getEvaluator().invalidateAll();
+            accessListEvents.allAccessListsChanged();
+        } else {
+            PolicyEvaluator.getEvaluator().invalidatePatient(patientId);
+            accessListEvents.accessListChanged(patientId, new MongoQuery().getAccessList(patientId));
+        }
+        return "OK";
     };
+
+    public static Route handleStatus = (request, response) -> {
+        MongoConnectionManager connections = MongoConnectionManager.getInstance();
+        response.type("text/plain");
+        return "mongoPoolMaxSize=" + connections.getMaxPoolSize() + "\n"
+                + "mongoPoolOpenConnections=" + connections.getOpenConnections() + "\n"
+                + "mongoPoolCheckedOutConnections=" + connections.getCheckedOutConnections() + "\n"
+                + "mongoPoolWaitingRequests=" + connections.getWaitingRequests() + "\n"
+                + "mongoPoolTotalCheckouts=" + connections.getTotalCheckouts() + "\n"
+                + "requestsInFlight=" + admissionController.getInFlight() + "\n"
+                + "requestsQueued=" + admissionController.getQueued() + "\n"
+                + "requestsAdmitted=" + admissionController.getAdmittedCount() + "\n"
+                + "requestsRejected=" + admissionController.getRejectedCount() + "\n"
+                + "accessListEventClients=" + accessListEvents.getClientCount() + "\n"
+                + "policyChangesWatched=" + accessListEvents.isWatching() + "\n";
+    };
+
+    public static Route handleMetrics = (request, response) -> {
+        response.type("text/plain; version=0.0.4");
+        return Metrics.scrape(PolicyEvaluator.getEvaluator(), admissionController);
+    };
+
+    /**
+     * read the request body, decompressed if it was sent with gzip
+     * @param request the request
+     * @return the body
+     * @throws IOException if the body can't be decompressed
+     */
+    private static String readBody(Request request) throws IOException {
+        String encoding = request.headers("Content-Encoding");
+        if (encoding != null && encoding.toLowerCase().contains("gzip")) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(request.bodyAsBytes()))) {
+                return IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        }
+        return request.body();
+    }
+
+    private static boolean acceptsGzip(Request request) {
+        String accepted = request.headers("Accept-Encoding");
+        return accepted != null && accepted.toLowerCase().contains("gzip");
+    }
 }
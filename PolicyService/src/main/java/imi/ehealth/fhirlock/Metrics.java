@@ -0,0 +1,214 @@
+package imi.ehealth.fhirlock;
+
+import org.wso2.balana.ctx.AbstractResult;
+import org.wso2.balana.ctx.ResponseCtx;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the policy service in prometheus text format
+ * Keeps latency histograms of the evaluation phases and counters of the decisions;
+ * cache, request and connection pool statistics are read from their sources on each scrape
+ */
+public final class Metrics {
+
+    //evaluation phases
+    public static final String PHASE_PARSE = "parse";
+    public static final String PHASE_ATTRIBUTES = "attributes";
+    public static final String PHASE_FETCH = "fetch";
+    public static final String PHASE_COMPILE = "compile";
+    public static final String PHASE_MATCH = "match";
+    public static final String PHASE_COMBINE = "combine";
+    public static final String PHASE_SERIALIZE = "serialize";
+
+    //upper bounds of the histogram buckets in seconds
+    private static final double[] BUCKETS = {0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5};
+
+    private static final Map<String, Histogram> phases = new ConcurrentSkipListMap<>();
+    private static final Histogram evaluations = new Histogram();
+    private static final Map<String, LongAdder> decisions = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * record the duration of an evaluation phase
+     * @param phase the phase, one of the PHASE constants
+     * @param nanos the duration in ns
+     */
+    public static void recordPhase(String phase, long nanos) {
+        phases.computeIfAbsent(phase, p -> new Histogram()).observe(nanos);
+    }
+
+    /**
+     * record the duration of a whole /evaluate request
+     * @param nanos the duration in ns
+     */
+    public static void recordEvaluation(long nanos) {
+        evaluations.observe(nanos);
+    }
+
+    /**
+     * count the decisions of an evaluated response
+     * @param response the response
+     */
+    public static void recordDecisions(ResponseCtx response) {
+        for (AbstractResult result : response.getResults()) {
+            decisions.computeIfAbsent(getOutcome(result.getDecision()), o -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * write all metrics in prometheus text format
+     * @param evaluator the evaluator with the caches
+     * @param admissionController the admission controller of the requests (null, if none)
+     * @return the metrics
+     */
+    public static String scrape(PolicyEvaluator evaluator, AdmissionController admissionController) {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# HELP policyservice_evaluation_duration_seconds Duration of /evaluate requests\n");
+        out.append("# TYPE policyservice_evaluation_duration_seconds histogram\n");
+        evaluations.write(out, "policyservice_evaluation_duration_seconds", "");
+
+        out.append("# HELP policyservice_phase_duration_seconds Duration of the phases of an evaluation\n");
+        out.append("# TYPE policyservice_phase_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> phase : phases.entrySet()) {
+            phase.getValue().write(out, "policyservice_phase_duration_seconds", "phase=\"" + phase.getKey() + "\"");
+        }
+
+        out.append("# HELP policyservice_decisions_total Evaluated decisions by outcome (without decision cache hits)\n");
+        out.append("# TYPE policyservice_decisions_total counter\n");
+        for (Map.Entry<String, LongAdder> decision : decisions.entrySet()) {
+            out.append("policyservice_decisions_total{outcome=\"").append(decision.getKey()).append("\"} ")
+                    .append(decision.getValue().sum()).append('\n');
+        }
+
+        Map<String, ExpiringCache<?, ?>> caches = new LinkedHashMap<>();
+        caches.put("policy", evaluator.getFinderModule().getPolicyCache());
+        caches.put("reference", evaluator.getFinderModule().getReferenceCache());
+        caches.put("decision", evaluator.getDecisionCache().getCache());
+
+        out.append("# HELP policyservice_cache_hits_total Cache hits\n");
+        out.append("# TYPE policyservice_cache_hits_total counter\n");
+        for (Map.Entry<String, ExpiringCache<?, ?>> cache : caches.entrySet()) {
+            out.append("policyservice_cache_hits_total{cache=\"").append(cache.getKey()).append("\"} ")
+                    .append(cache.getValue().getHitCount()).append('\n');
+        }
+        out.append("# HELP policyservice_cache_misses_total Cache misses\n");
+        out.append("# TYPE policyservice_cache_misses_total counter\n");
+        for (Map.Entry<String, ExpiringCache<?, ?>> cache : caches.entrySet()) {
+            out.append("policyservice_cache_misses_total{cache=\"").append(cache.getKey()).append("\"} ")
+                    .append(cache.getValue().getMissCount()).append('\n');
+        }
+        out.append("# HELP policyservice_cache_hit_ratio Ratio of cache hits to all lookups\n");
+        out.append("# TYPE policyservice_cache_hit_ratio gauge\n");
+        for (Map.Entry<String, ExpiringCache<?, ?>> cache : caches.entrySet()) {
+            long hits = cache.getValue().getHitCount();
+            long lookups = hits + cache.getValue().getMissCount();
+            out.append("policyservice_cache_hit_ratio{cache=\"").append(cache.getKey()).append("\"} ")
+                    .append(lookups == 0 ? "0" : format((double) hits / lookups)).append('\n');
+        }
+
+        out.append("# HELP policyservice_cache_rejected_total Values not cached, because they are larger than the whole cache\n");
+        out.append("# TYPE policyservice_cache_rejected_total counter\n");
+        for (Map.Entry<String, ExpiringCache<?, ?>> cache : caches.entrySet()) {
+            out.append("policyservice_cache_rejected_total{cache=\"").append(cache.getKey()).append("\"} ")
+                    .append(cache.getValue().getRejectedCount()).append('\n');
+        }
+
+        BasePolicyCache basePolicies = evaluator.getFinderModule().getBasePolicyCache();
+        writeGauge(out, "policyservice_base_policies", "Compiled base policies of all patients", basePolicies.size());
+        writeCounter(out, "policyservice_base_policy_hits_total", "All-patients requests served by the compiled base policies", basePolicies.getHitCount());
+        writeCounter(out, "policyservice_base_policy_loads_total", "Loads of all base policies", basePolicies.getLoadCount());
+        writeCounter(out, "policyservice_base_policy_refreshes_total", "Reloads of the base policies of changed patients", basePolicies.getRefreshCount());
+
+        if (admissionController != null) {
+            writeGauge(out, "policyservice_requests_in_flight", "Requests in processing", admissionController.getInFlight());
+            writeGauge(out, "policyservice_requests_queued", "Requests waiting for processing", admissionController.getQueued());
+            writeCounter(out, "policyservice_requests_rejected_total", "Requests rejected because of overload", admissionController.getRejectedCount());
+        }
+
+        MongoConnectionManager connections = MongoConnectionManager.getInstance();
+        writeGauge(out, "policyservice_mongo_connections_open", "Open mongo connections", connections.getOpenConnections());
+        writeGauge(out, "policyservice_mongo_connections_checked_out", "Mongo connections in use", connections.getCheckedOutConnections());
+        writeGauge(out, "policyservice_mongo_connections_waiting", "Requests waiting for a mongo connection", connections.getWaitingRequests());
+        return out.toString();
+    }
+
+    private static String getOutcome(int decision) {
+        switch (decision) {
+            case AbstractResult.DECISION_PERMIT:
+                return "permit";
+            case AbstractResult.DECISION_DENY:
+                return "deny";
+            case AbstractResult.DECISION_NOT_APPLICABLE:
+                return "not_applicable";
+            default:
+                return "indeterminate";
+        }
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * histogram with fixed buckets; lock free, as it is updated by all evaluating threads
+     */
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(long nanos) {
+            double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        private void write(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{").append(separator).append("le=\"").append(BUCKETS[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            long total = Math.max(count.sum(), cumulative);
+            out.append(name).append("_bucket{").append(separator).append("le=\"+Inf\"} ").append(total).append('\n');
+            String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            out.append(name).append("_sum").append(suffix).append(format(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1))).append('\n');
+            out.append(name).append("_count").append(suffix).append(total).append('\n');
+        }
+    }
+}
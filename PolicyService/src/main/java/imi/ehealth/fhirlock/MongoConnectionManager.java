@@ -0,0 +1,159 @@
+package imi.ehealth.fhirlock;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+import org.bson.Document;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Owns the application wide mongo client
+ * The client is created once with the pool settings of the {@link DbConfiguration} and shared by all queries;
+ * it is closed when the jvm shuts down
+ */
+public class MongoConnectionManager {
+    private static final Logger log = Logger.getLogger( MongoConnectionManager.class.getName() );
+
+    private static volatile MongoConnectionManager instance;
+
+    private final MongoClient mongoClient;
+    private final DbConfiguration config;
+
+    //pool statistics, updated by the pool listener
+    private final AtomicLong openConnections = new AtomicLong();
+    private final AtomicLong checkedOutConnections = new AtomicLong();
+    private final AtomicLong waitingRequests = new AtomicLong();
+    private final AtomicLong totalCheckouts = new AtomicLong();
+
+    private MongoConnectionManager(DbConfiguration config) {
+        log.info("Create shared mongo client..");
+        this.config = config;
+
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString("mongodb://" + config.getPath() + ":" + config.getPort()))
+                .applyToConnectionPoolSettings(builder -> builder
+                        .maxSize(config.getMaxPoolSize())
+                        .minSize(config.getMinPoolSize())
+                        .maxWaitTime(config.getMaxWaitTime(), TimeUnit.MILLISECONDS)
+                        .maxConnectionIdleTime(config.getMaxIdleTime(), TimeUnit.MILLISECONDS)
+                        .maintenanceFrequency(10, TimeUnit.SECONDS)
+                        .addConnectionPoolListener(new PoolStatisticsListener()))
+                .applyToSocketSettings(builder -> builder
+                        .connectTimeout(config.getConnectTimeout(), TimeUnit.MILLISECONDS)
+                        .readTimeout(config.getReadTimeout(), TimeUnit.MILLISECONDS))
+                .applyToClusterSettings(builder -> builder
+                        .serverSelectionTimeout(config.getServerSelectionTimeout(), TimeUnit.MILLISECONDS))
+                .build();
+        this.mongoClient = MongoClients.create(settings);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "mongo-client-shutdown"));
+    }
+
+    /**
+     * get the shared instance and create, if null
+     * @return the connection manager
+     */
+    public static MongoConnectionManager getInstance() {
+        if (instance == null) {
+            synchronized (MongoConnectionManager.class) {
+                if (instance == null) {
+                    instance = new MongoConnectionManager(DbConfiguration.getConfiguration());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * get the configured database
+     * @return the database
+     */
+    public MongoDatabase getDatabase() {
+        return mongoClient.getDatabase(config.getName());
+    }
+
+    /**
+     * get the configured policy collection
+     * @return the collection
+     */
+    public MongoCollection<Document> getPolicyCollection() {
+        return getDatabase().getCollection(config.getCollection());
+    }
+
+    /**
+     * close the client and all pooled connections
+     */
+    public void close() {
+        log.info("Close shared mongo client..");
+        mongoClient.close();
+    }
+
+    public long getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public long getCheckedOutConnections() {
+        return checkedOutConnections.get();
+    }
+
+    public long getWaitingRequests() {
+        return waitingRequests.get();
+    }
+
+    public long getTotalCheckouts() {
+        return totalCheckouts.get();
+    }
+
+    public int getMaxPoolSize() {
+        return config.getMaxPoolSize();
+    }
+
+    /**
+     * keeps track of the connections in the pool
+     */
+    private class PoolStatisticsListener extends ConnectionPoolListenerAdapter {
+        @Override
+        public void connectionAdded(ConnectionAddedEvent event) {
+            openConnections.incrementAndGet();
+        }
+
+        @Override
+        public void connectionRemoved(ConnectionRemovedEvent event) {
+            openConnections.decrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+            checkedOutConnections.incrementAndGet();
+            totalCheckouts.incrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+            checkedOutConnections.decrementAndGet();
+        }
+
+        @Override
+        public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+            waitingRequests.incrementAndGet();
+        }
+
+        @Override
+        public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+            waitingRequests.decrementAndGet();
+        }
+    }
+}
@@ -28,61 +28,188 @@ import java.io.StringReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Custom Policy Finder Module
  * Loads polices from a database and provides different behaviours for the two differenz request types
+ * The module is shared by all requests: request attributes and loaded policies live in the {@link EvaluationScope}
  */
 public class MongoDbPolicyFinderModule extends PolicyFinderModule {
-    private Map<URI, AbstractPolicy> policies;
     private PolicyFinder finder = null;
 
     private static final Logger myLog = LoggerFactory.getLogger(MongoDbPolicyFinderModule.class);
 
-    private MongoQuery query;
+    private PolicyStore query;
+
+    //compiled and target indexed policies by "set:<patientId>"
+    private ExpiringCache<String, PolicyTargetIndex> policyCache;
+
+    //compiled base policies of all patients for the all-patients request
+    private BasePolicyCache basePolicyCache;
+
+    //resolved policy references by urn: the compiled policy or empty, if no (single) policy has this name
+    private ExpiringCache<String, Optional<AbstractPolicy>> referenceCache;
+    private long referenceNegativeCacheTtl;
+
+    //placeholder for references that aren't relevant for a request: its target never matches
+    private static final AbstractPolicy dummyPolicy = createDummyPolicy();
+
+    //patients of the last requests, preloaded by the warm-up
+    private RecentPatients recentPatients;
+
+    //evaluates the base policies of the all-patients request in parallel
+    private ForkJoinPool combinePool;
+    private int combineParallelThreshold;
 
     private final String attributeIdPatientResource = "urn:oasis:names:tc:xacml:1.0:resource:patient-id";
     private final String attributeIdResourceType = "urn:oasis:names:tc:xacml:1.0:resource:resource-type";
 
-    private String patientId;
-    private String resourceType;
-    private String resourceId;
-
     public MongoDbPolicyFinderModule(){
         }
 
+    /**
+     * create a module loading the policies from the given store instead of mongo
+     * @param store the policy store
+     */
+    public MongoDbPolicyFinderModule(PolicyStore store){
+        this.query = store;
+    }
+
     @Override
     public void init(PolicyFinder finder) {
         this.finder = finder;
-        DbConfiguration dbConfig = new DbConfiguration();
-        dbConfig.load();
-        //for Mongo
-        this.query =  new MongoQuery(dbConfig);
+        if (this.query == null) {
+            //for Mongo, on the shared client
+            this.query =  new MongoQuery();
+        }
+
+        ServiceConfiguration serviceConfig = ServiceConfiguration.getConfiguration();
+        this.policyCache = new ExpiringCache<>(serviceConfig.getPolicyCacheMaxWeight(),
+                serviceConfig.getPolicyCacheTtl(), TimeUnit.SECONDS);
+        this.basePolicyCache = new BasePolicyCache(query, this::compilePolicy,
+                serviceConfig.isBasePolicyCache() ? serviceConfig.getPolicyCacheTtl() : 0, TimeUnit.SECONDS);
+        this.referenceCache = new ExpiringCache<>(serviceConfig.getReferenceCacheMaxWeight(),
+                serviceConfig.getReferenceCacheTtl(), TimeUnit.SECONDS);
+        this.referenceNegativeCacheTtl = serviceConfig.getReferenceNegativeCacheTtl();
+        this.recentPatients = new RecentPatients(serviceConfig.getWarmUpRecentPatients());
+
+        this.combinePool = new ForkJoinPool(serviceConfig.getCombineParallelism() > 0
+                ? serviceConfig.getCombineParallelism() : Runtime.getRuntime().availableProcessors());
+        this.combineParallelThreshold = serviceConfig.getCombineParallelThreshold();
+    }
+
+    /**
+     * get the recently evaluated patients
+     * @return the recent patients
+     */
+    public RecentPatients getRecentPatients() {
+        return recentPatients;
+    }
+
+    /**
+     * load and compile all base policies and the policy sets of the given patients
+     * @param patientIds the patients to preload
+     * @param pool the pool for loading and compiling in parallel
+     * @return number of compiled policies
+     * @throws InterruptedException if interrupted while waiting for the pool
+     * @throws ExecutionException if loading failed
+     */
+    public int warmUp(List<String> patientIds, ForkJoinPool pool) throws InterruptedException, ExecutionException {
+        //the parallel streams run in the given pool, as they are started from one of its tasks
+        return pool.submit(() -> basePolicyCache.getPolicies(true).size()
+                + patientIds.parallelStream()
+                        .mapToInt(patientId -> getCompiledPolicies("set:" + patientId, () -> query.loadPolicySetsByTarget(patientId)).getPolicies().size())
+                        .sum()).get();
+    }
+
+    /**
+     * get the cache of compiled policies (e.g. for hit/miss statistics)
+     * @return the policy cache
+     */
+    public ExpiringCache<String, PolicyTargetIndex> getPolicyCache() {
+        return policyCache;
+    }
+
+    /**
+     * get the cache of the base policies of all patients
+     * @return the base policy cache
+     */
+    public BasePolicyCache getBasePolicyCache() {
+        return basePolicyCache;
+    }
+
+    /**
+     * get the cache of resolved policy references (e.g. for hit/miss statistics)
+     * @return the reference cache
+     */
+    public ExpiringCache<String, Optional<AbstractPolicy>> getReferenceCache() {
+        return referenceCache;
+    }
+
+    /**
+     * drop the compiled policies of a patient, including its base policy
+     * @param patientId the patient whose policies changed
+     */
+    public void invalidatePatient(String patientId) {
+        policyCache.invalidate("set:" + patientId);
+        basePolicyCache.invalidatePatient(patientId);
+        String namePrefix = "urn:patient:" + patientId + ":";
+        referenceCache.invalidateIf(key -> key.startsWith(namePrefix));
+    }
+
+    /**
+     * drop all compiled policies
+     */
+    public void invalidateAll() {
+        policyCache.invalidateAll();
+        basePolicyCache.invalidateAll();
+        referenceCache.invalidateAll();
     }
 
     @Override
     public PolicyFinderResult findPolicy(EvaluationCtx context) {
-        policies = new HashMap<>();
+        long start = System.nanoTime();
+        try {
+            return selectPolicies(context);
+        } finally {
+            EvaluationScope scope = EvaluationScope.current();
+            if (scope != null) {
+                scope.addFinderNanos(System.nanoTime() - start);
+            }
+        }
+    }
 
+    private PolicyFinderResult selectPolicies(EvaluationCtx context) {
         //try to get the request attributes
-        patientId = getAttributeFromRequest(context, attributeIdPatientResource);
-        resourceType = getAttributeFromRequest(context, attributeIdResourceType);
-        resourceId = getAttributeFromRequest(context, PolicyConstants.RESOURCE_ID);
+        long start = System.nanoTime();
+        String patientId = getAttributeFromRequest(context, attributeIdPatientResource);
+        String resourceType = getAttributeFromRequest(context, attributeIdResourceType);
+        String resourceId = getAttributeFromRequest(context, PolicyConstants.RESOURCE_ID);
+        Metrics.recordPhase(Metrics.PHASE_ATTRIBUTES, System.nanoTime() - start);
+
+        //new scope for this request, bound to the evaluating thread
+        EvaluationScope scope = new EvaluationScope(patientId, resourceType, resourceId);
+        EvaluationScope.begin(scope);
 
         ArrayList<AbstractPolicy> selectedPolicies = new ArrayList<AbstractPolicy>();
 
         PolicyCombiningAlgorithm combiningAlg;
         if(resourceId == null){
             //load all patients if no resourceId submitted
-            combiningAlg = new CheckAllPolDenyUnlessPermitAlg();
+            combiningAlg = new CheckAllPolDenyUnlessPermitAlg(combinePool, combineParallelThreshold);
 
             //load all base policies
-            List<String> policies = query.loadPoliciesByType("base");
-            for(String policy : policies){
-                loadSinglePolicy(policy);
+            for(AbstractPolicy policy : basePolicyCache.getPolicies(false)){
+                scope.putPolicy(policy.getId(), policy);
             }
 
-            Set<Map.Entry<URI, AbstractPolicy>> entrySet = this.policies.entrySet();
+            Set<Map.Entry<URI, AbstractPolicy>> entrySet = scope.getPolicies().entrySet();
 
             // iterate through all the policies we currently have loaded
             // here we want all of them (assuming they are all patient based): no target matching necessary
@@ -93,18 +220,17 @@ public class MongoDbPolicyFinderModule extends PolicyFinderModule {
         }else{
             //TODO decide which one is the right here
             combiningAlg = new DenyOverridesPolicyAlg();
+            recentPatients.record(patientId);
 
             //Mongo
-            List<String> policies = query.loadPolicySetsByTarget(patientId);
-            for(String policy : policies){
-                loadSinglePolicy(policy);
+            PolicyTargetIndex patientPolicies = getCompiledPolicies("set:" + patientId, () -> query.loadPolicySetsByTarget(patientId));
+            for(AbstractPolicy policy : patientPolicies.getPolicies()){
+                scope.putPolicy(policy.getId(), policy);
             }
 
-            Set<Map.Entry<URI, AbstractPolicy>> entrySet = this.policies.entrySet();
-
-            // iterate through all the policies we currently have loaded
-            for (Map.Entry<URI, AbstractPolicy> entry : entrySet) {
-                AbstractPolicy policy = entry.getValue();
+            // iterate through the loaded policies whose target can match the request (by the target index)
+            long matchStart = System.nanoTime();
+            for (AbstractPolicy policy : patientPolicies.getCandidates(context)) {
                 MatchResult match = policy.match(context);
                 int result = match.getResult();
 
@@ -127,6 +253,10 @@ public class MongoDbPolicyFinderModule extends PolicyFinderModule {
                 }
 
             }
+            Metrics.recordPhase(Metrics.PHASE_MATCH, System.nanoTime() - matchStart);
+
+            //load the relevant referenced policies of the selected sets now, in one query per reference level
+            prefetchReferences(selectedPolicies, scope);
         }
 
         // no errors happened during the search, so now take the right
@@ -164,18 +294,192 @@ public class MongoDbPolicyFinderModule extends PolicyFinderModule {
     }
 
     /**
-     * load a single policy and add to list
-     * @param policy the policy xml
+     * get the compiled policies for a cache key; load and compile them on a cache miss
+     * @param cacheKey the key, e.g. "set:<patientId>"
+     * @param loader loads the policy xmls from the database
+     * @return the compiled policies
+     */
+    private PolicyTargetIndex getCompiledPolicies(String cacheKey, Supplier<List<String>> loader) {
+        PolicyTargetIndex compiled = policyCache.get(cacheKey);
+        if (compiled == null) {
+            //policies invalidated while loading and compiling are used for this request, but not cached
+            long generation = policyCache.getGeneration();
+            long start = System.nanoTime();
+            List<String> policyXmls = loader.get();
+            Metrics.recordPhase(Metrics.PHASE_FETCH, System.nanoTime() - start);
+            compiled = new PolicyTargetIndex(Collections.unmodifiableList(policyXmls.stream().map(this::compilePolicy)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList())));
+            //weight of the entry: length of the policy xmls (at least 1, so empty results are bounded too)
+            long weight = 1;
+            for (String policyXml : policyXmls) {
+                weight += policyXml.length();
+            }
+            policyCache.putIfUnchanged(cacheKey, compiled, weight, generation);
+        }
+        return compiled;
+    }
+
+    /**
+     * check whether a referenced policy is relevant for the request and has to be loaded
+     * base policies are always relevant, others if they match the requested resource type (and id, if part of the urn)
+     * @param idReference the urn of the referenced policy, e.g. urn:patient:1:policies:condition:2
+     * @param scope the scope of the request
+     * @return true, if the policy has to be loaded; false, if the dummy policy can be used
      */
-    private void loadSinglePolicy(String policy) {
+    private boolean isReferenceToLoad(URI idReference, EvaluationScope scope) {
+        String[] urnParts = idReference.toString().split(":");
+        if(urnParts.length < 5){
+            return false;
+        }
+        String policyResourceType = urnParts[4];
+        String policyId = null;
+        if(urnParts.length > 5){
+            policyId = urnParts[5];
+        }
 
-        Document doc = getPolicyXmlDocument(policy);
-        if (doc != null) {
-            loadPolicy(doc.getDocumentElement(), this.finder);
+        //matching by type, and if id exists, by id
+        if(scope.getResourceType() != null && policyResourceType.equals(scope.getResourceType().toLowerCase())){
+            if((policyId != null && policyId.equals(scope.getResourceId())) || policyId == null){
+                //this means the referenced policy is relevant for the request
+                return true;
+            }
         }
+        return policyResourceType.equals("base");
     }
 
-    private Document getPolicyXmlDocument(String policy) {
+    /**
+     * load and compile the relevant policies referenced by the given policy sets into the reference cache
+     * All missing references of one level are loaded with a single query and compiled in parallel;
+     * referenced policy sets are scanned for the next level
+     * @param policies the policy sets
+     * @param scope the scope of the request
+     */
+    private void prefetchReferences(List<AbstractPolicy> policies, EvaluationScope scope) {
+        Set<String> visited = new HashSet<>();
+        List<AbstractPolicy> level = policies;
+        while (!level.isEmpty()) {
+            List<AbstractPolicy> nextLevel = new ArrayList<>();
+            List<String> missing = new ArrayList<>();
+            for (AbstractPolicy policy : level) {
+                for (Object child : policy.getChildren()) {
+                    if (!(child instanceof PolicyReference)) {
+                        continue;
+                    }
+                    URI reference = ((PolicyReference) child).getReference();
+                    if (!isReferenceToLoad(reference, scope) || !visited.add(reference.toString())) {
+                        continue;
+                    }
+                    Optional<AbstractPolicy> cached = referenceCache.get(reference.toString());
+                    if (cached == null) {
+                        missing.add(reference.toString());
+                    } else if (cached.isPresent()) {
+                        scope.putPolicy(reference, cached.get());
+                        nextLevel.add(cached.get());
+                    }
+                }
+            }
+            if (!missing.isEmpty()) {
+                long generation = referenceCache.getGeneration();
+                long fetchStart = System.nanoTime();
+                Map<String, List<String>> loaded = query.loadPoliciesByNames(missing);
+                Metrics.recordPhase(Metrics.PHASE_FETCH, System.nanoTime() - fetchStart);
+                Stream<String> names = missing.size() > 1 ? missing.parallelStream() : missing.stream();
+                List<AbstractPolicy> compiled = names.map(name -> {
+                    AbstractPolicy policy = cacheReference(name, loaded.getOrDefault(name, Collections.emptyList()), generation);
+                    scope.putPolicy(URI.create(name), policy);
+                    return policy;
+                }).filter(Objects::nonNull).collect(Collectors.toList());
+                nextLevel.addAll(compiled);
+            }
+            level = nextLevel;
+        }
+    }
+
+    /**
+     * get a referenced policy from the reference cache; load and compile it on a cache miss
+     * @param idReference the name of the policy
+     * @return the compiled policy or null, if not found
+     */
+    private AbstractPolicy getReferencedPolicy(URI idReference) {
+        String name = idReference.toString();
+        Optional<AbstractPolicy> cached = referenceCache.get(name);
+        if (cached == null) {
+            long generation = referenceCache.getGeneration();
+            long start = System.nanoTime();
+            List<String> policyXmls = query.loadPoliciesByName(name);
+            Metrics.recordPhase(Metrics.PHASE_FETCH, System.nanoTime() - start);
+            return cacheReference(name, policyXmls, generation);
+        }
+        return cached.orElse(null);
+    }
+
+    /**
+     * compile a referenced policy and add it to the reference cache
+     * Names without a (single) policy are cached as well, but only for the shorter negative ttl
+     * @param name the name of the policy
+     * @param policyXmls the policies found with this name
+     * @param generation the generation of the reference cache before the policies were loaded;
+     *                   not cached, if the references were invalidated since
+     * @return the compiled policy or null, if not found
+     */
+    private AbstractPolicy cacheReference(String name, List<String> policyXmls, long generation) {
+        AbstractPolicy policy = policyXmls.size() == 1 ? compilePolicy(policyXmls.get(0)) : null;
+        if (policy != null) {
+            referenceCache.putIfUnchanged(name, Optional.of(policy), policyXmls.get(0).length(), generation);
+        } else {
+            referenceCache.putIfUnchanged(name, Optional.empty(), 1, referenceNegativeCacheTtl, TimeUnit.SECONDS, generation);
+        }
+        return policy;
+    }
+
+    /**
+     * compile the never matching dummy policy once
+     * @return the dummy policy
+     */
+    private static AbstractPolicy createDummyPolicy() {
+        String dummyPolicyXml = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:policies:dummy\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:permit-unless-deny\" Version=\"1.0\">\n" +
+                "\t<Target>\n" +
+                "\t\t<AnyOf>\n" +
+                "\t\t\t<AllOf>\n" +
+                "\t\t\t\t<Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">\n" +
+                "\t\t\t\t\t<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\"></AttributeValue>\n" +
+                "\t\t\t\t\t<AttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:patient-id\" Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"true\"/>\n" +
+                "\t\t\t\t</Match>\n" +
+                "\t\t\t</AllOf>\n" +
+                "\t\t</AnyOf>\n" +
+                "\t</Target>\n" +
+                "</Policy>";
+        try {
+            Document policyXmlDocument = getPolicyXmlDocument(dummyPolicyXml);
+            if(policyXmlDocument != null){
+                return Policy.getInstance(policyXmlDocument.getDocumentElement());
+            }
+        } catch (ParsingException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * compile a single policy
+     * @param policy the policy xml
+     * @return the compiled policy or null, if not loadable
+     */
+    private AbstractPolicy compilePolicy(String policy) {
+        long start = System.nanoTime();
+        try {
+            Document doc = getPolicyXmlDocument(policy);
+            if (doc != null) {
+                return loadPolicy(doc.getDocumentElement(), this.finder);
+            }
+            return null;
+        } finally {
+            Metrics.recordPhase(Metrics.PHASE_COMPILE, System.nanoTime() - start);
+        }
+    }
+
+    private static Document getPolicyXmlDocument(String policy) {
         try{
             DocumentBuilderFactory factory = Utils.getSecuredDocumentBuilderFactory();
 
@@ -198,7 +502,40 @@ public class MongoDbPolicyFinderModule extends PolicyFinderModule {
     public PolicyFinderResult findPolicy(URI idReference, int type, VersionConstraints constraints,
                                          PolicyMetaData parentMetaData) {
 
-        AbstractPolicy policy = policies.get(idReference);
+        EvaluationScope scope = EvaluationScope.current();
+        long start = System.nanoTime();
+        try {
+            return resolveReference(idReference, type, scope);
+        } finally {
+            if (scope != null) {
+                scope.addFinderNanos(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private PolicyFinderResult resolveReference(URI idReference, int type, EvaluationScope scope) {
+        if(scope == null){
+            //references are only resolved while evaluating a request
+            ArrayList<String> code = new ArrayList<String>();
+            code.add(Status.STATUS_PROCESSING_ERROR);
+            return new PolicyFinderResult(new Status(code, "no evaluation in progress"));
+        }
+
+        AbstractPolicy policy = scope.getPolicy(idReference);
+        if(policy == null){
+            //check whether we should load this one..
+            if(isReferenceToLoad(idReference, scope)){
+                //try to load policy by name
+                policy = getReferencedPolicy(idReference);
+                scope.putPolicy(idReference, policy);
+            }else{
+                //add dummy policy whose target matching nerver fits..
+                policy = dummyPolicy;
+                scope.putPolicy(idReference, dummyPolicy);
+            }
+            //error only if load but not loadable..
+        }
+
         if(policy != null){
             if (type == PolicyReference.POLICY_REFERENCE) {
                 if (policy instanceof Policy){
@@ -209,57 +546,6 @@ public class MongoDbPolicyFinderModule extends PolicyFinderModule {
                     return new PolicyFinderResult(policy);
                 }
             }
-        }else{
-            //check whether we should load this one..
-            Boolean load = false;
-            String[] urnParts = idReference.toString().split(":");
-            String policyResourceType = urnParts[4];
-            String policyId = null;
-            if(urnParts.length > 5){
-                policyId = urnParts[5];
-            }
-
-            //matching by type, and if id exists, by id
-            if(policyResourceType.equals(this.resourceType.toLowerCase())){
-                if((policyId != null && policyId.equals(this.resourceId)) || policyId == null){
-                    //this means the referenced policy is relevant for the request
-                    load = true;
-                }
-            }
-            if(load || policyResourceType.equals("base")){
-                //try to load policy by name
-                List<String> policies = query.loadPoliciesByName(idReference.toString());
-                if(policies != null && policies.size() == 1){
-                    loadSinglePolicy(policies.get(0));
-                    return this.findPolicy(idReference,type,constraints,parentMetaData);
-                }
-            }else{
-                //add dummy policy whose target matching nerver fits..
-                AbstractPolicy dummyPolicy = null;
-                try {
-                    String dummyPolicyXml = "<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"urn:policies:dummy\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:permit-unless-deny\" Version=\"1.0\">\n" +
-                            "\t<Target>\n" +
-                            "\t\t<AnyOf>\n" +
-                            "\t\t\t<AllOf>\n" +
-                            "\t\t\t\t<Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">\n" +
-                            "\t\t\t\t\t<AttributeValue DataType=\"http://www.w3.org/2001/XMLSchema#string\"></AttributeValue>\n" +
-                            "\t\t\t\t\t<AttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:resource:patient-id\" Category=\"urn:oasis:names:tc:xacml:3.0:attribute-category:resource\" DataType=\"http://www.w3.org/2001/XMLSchema#string\" MustBePresent=\"true\"/>\n" +
-                            "\t\t\t\t</Match>\n" +
-                            "\t\t\t</AllOf>\n" +
-                            "\t\t</AnyOf>\n" +
-                            "\t</Target>\n" +
-                            "</Policy>";
-                    Document policyXmlDocument = getPolicyXmlDocument(dummyPolicyXml);
-                    if(policyXmlDocument != null){
-                        dummyPolicy = Policy.getInstance(policyXmlDocument.getDocumentElement());
-                    }
-                } catch (ParsingException e) {
-                    e.printStackTrace();
-                }
-                policies.put(idReference, dummyPolicy);
-                return this.findPolicy(idReference,type,constraints,parentMetaData);
-            }
-            //error only if load but not loadable..
         }
 
         // if there was an error loading the policy, return the error
@@ -302,9 +588,6 @@ public class MongoDbPolicyFinderModule extends PolicyFinderModule {
             // just only logs
             myLog.error("Fail to load policy : " + rootPolicyXml.getTagName() , e);
         }
-        if (policy != null) {
-            this.policies.put(policy.getId(), policy);
-        }
         return policy;
     }
 }
@@ -2,36 +2,51 @@ package imi.ehealth.fhirlock;
 
 import com.mongodb.client.*;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
 import static com.mongodb.client.model.Projections.excludeId;
 import static com.mongodb.client.model.Projections.fields;
 import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
 
 /**
  * Class for accessing mongo db and running queries to fetch policies
  */
-public class MongoQuery {
+public class MongoQuery implements PolicyStore {
 
     private MongoCollection<Document> collection;
     private static final Logger log = Logger.getLogger( MongoQuery.class.getName() );
 
 
     /**
-     * create new instance with a configuration
-     * @param config the configuration
+     * create new instance on the shared mongo client
      */
-    public MongoQuery(DbConfiguration config){
-
-        MongoClient mongoClient = MongoClients.create("mongodb://" + config.getPath() + ":" + config.getPort());
+    public MongoQuery(){
+        this(MongoConnectionManager.getInstance());
+    }
 
-        MongoDatabase database = mongoClient.getDatabase(config.getName());
-        collection = database.getCollection(config.getCollection());
+    /**
+     * create new instance on the client of a connection manager
+     * @param connectionManager the connection manager
+     */
+    public MongoQuery(MongoConnectionManager connectionManager){
+        collection = connectionManager.getPolicyCollection();
     }
 
     /**
@@ -50,6 +65,7 @@ public class MongoQuery {
      * @param target the target = patientid
      * @return the polici(es) as a list
      */
+    @Override
     public List<String> loadPolicySetsByTarget(String target){
         MongoCursor<Document> cursor = collection.find(Filters.and(eq("type","set"),eq("target", target))).iterator();
         return getPolicies(cursor);
@@ -60,6 +76,7 @@ public class MongoQuery {
      * @param type the type
      * @return list with all matching polices
      */
+    @Override
     public List<String> loadPoliciesByType(String type){
         MongoCursor<Document> cursor = collection.find(eq("type", type)).iterator();
         return getPolicies(cursor);
@@ -70,11 +87,30 @@ public class MongoQuery {
      * @param name the name
      * @return list with all matching policies
      */
+    @Override
     public List<String> loadPoliciesByName(String name){
         MongoCursor<Document> cursor = collection.find(eq("name", name)).iterator();
         return getPolicies(cursor);
     }
 
+    /**
+     * load all policies with one of the given "name"s in a single query
+     * @param names the names
+     * @return the matching policies by name
+     */
+    @Override
+    public Map<String, List<String>> loadPoliciesByNames(Collection<String> names){
+        Map<String, List<String>> policies = new HashMap<>();
+        try (MongoCursor<Document> cursor = collection.find(in("name", names))
+                .projection(fields(include("name", "policy"), excludeId())).iterator()) {
+            while (cursor.hasNext()) {
+                Document policy = cursor.next();
+                policies.computeIfAbsent(policy.getString("name"), name -> new ArrayList<>()).add(policy.getString("policy"));
+            }
+        }
+        return policies;
+    }
+
     public List<String> getPatientAccessList(String userName){
         MongoCursor<Document> cursor =
                 collection.find(Filters.and(eq("type", "base"),eq("accessList",userName ))).projection(fields(include("target"), excludeId())).iterator();
@@ -95,6 +131,88 @@ public class MongoQuery {
     }
 
 
+    /**
+     * write the patients a user may access directly from the cursor, separated by semicolon
+     * The patients are ordered by id, so a page continues after the last id of the previous page
+     * @param userName the user
+     * @param after only patients with an id greater than this (null: from the start)
+     * @param limit maximum number of patients (0: all)
+     * @param batchSize number of patients fetched from the database at once
+     * @param writer the writer for the patient ids
+     * @return number of written patients
+     * @throws IOException if writing fails
+     */
+    public int writePatientAccessList(String userName, String after, int limit, int batchSize, Writer writer) throws IOException {
+        Bson filter = Filters.and(eq("type", "base"), eq("accessList", userName));
+        if (after != null) {
+            filter = Filters.and(filter, gt("target", after));
+        }
+        FindIterable<Document> result = collection.find(filter)
+                .projection(fields(include("target"), excludeId()))
+                .sort(ascending("target"))
+                .batchSize(batchSize)
+                .limit(limit);
+
+        int count = 0;
+        try (MongoCursor<Document> cursor = result.iterator()) {
+            while (cursor.hasNext()) {
+                if (count > 0) {
+                    writer.write(';');
+                }
+                writer.write(cursor.next().getString("target"));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * get the access list of a patient (the users on the access list of its base policy)
+     * @param patientId the patient
+     * @return the users
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getAccessList(String patientId) {
+        Document policy = collection.find(Filters.and(eq("type", "base"), eq("target", patientId)))
+                .projection(fields(include("accessList"), excludeId())).first();
+        List<String> users = new ArrayList<>();
+        if (policy != null && policy.get("accessList") instanceof List) {
+            users.addAll((List<String>) policy.get("accessList"));
+        }
+        return users;
+    }
+
+    /**
+     * pass the access lists of all patients to a consumer, directly from the cursor
+     * @param batchSize number of policies fetched from the database at once
+     * @param consumer gets the patient id and the users on its access list
+     * @return number of patients
+     */
+    @SuppressWarnings("unchecked")
+    public int forEachAccessList(int batchSize, BiConsumer<String, List<String>> consumer) {
+        int count = 0;
+        try (MongoCursor<Document> cursor = collection.find(eq("type", "base"))
+                .projection(fields(include("target", "accessList"), excludeId()))
+                .batchSize(batchSize).iterator()) {
+            while (cursor.hasNext()) {
+                Document policy = cursor.next();
+                Object accessList = policy.get("accessList");
+                consumer.accept(policy.getString("target"),
+                        accessList instanceof List ? (List<String>) accessList : new ArrayList<>());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * open a change stream on the policy collection (requires mongo to run as replica set)
+     * @return cursor over all changes, including the full changed document; blocks until the next change
+     */
+    public MongoCursor<ChangeStreamDocument<Document>> watchPolicyChanges(){
+        return collection.watch().fullDocument(FullDocument.UPDATE_LOOKUP).iterator();
+    }
+
     /**
      * loop through collection results and add to list
      * @param cursor collection cursor
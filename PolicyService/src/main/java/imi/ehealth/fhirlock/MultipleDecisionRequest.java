@@ -0,0 +1,214 @@
+package imi.ehealth.fhirlock;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.wso2.balana.utils.Utils;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+/**
+ * Splits a xacml 3.0 multiple decision request into individual requests
+ * Supports both variants of the multiple decision profile:
+ *  - repeated attribute categories (e.g. one resource category per resource)
+ *  - MultiRequests with RequestReferences to Attributes by xml:id
+ * The individual requests are evaluated independently and their results merged into one response
+ */
+public class MultipleDecisionRequest {
+
+    private static final String XACML3_NS = "urn:oasis:names:tc:xacml:3.0:core:schema:wd-17";
+
+    private MultipleDecisionRequest() {
+    }
+
+    /**
+     * split a request into individual requests
+     * @param xacmlRequest the xml xacml request
+     * @param maxRequests maximum number of individual requests
+     * @return the individual requests or null, if it's no (supported) multiple decision request
+     * @throws IllegalArgumentException if the request would result in more than maxRequests decisions
+     */
+    public static List<String> split(String xacmlRequest, int maxRequests) {
+        Element request = parse(xacmlRequest);
+        if (request == null || "true".equals(request.getAttribute("CombinedDecision"))) {
+            //a combined decision can't be answered with individual results
+            return null;
+        }
+
+        List<Element> attributes = getChildren(request, "Attributes");
+        List<Element> multiRequests = getChildren(request, "MultiRequests");
+
+        List<List<Element>> combinations;
+        if (!multiRequests.isEmpty()) {
+            combinations = getReferencedCombinations(attributes, multiRequests.get(0));
+        } else {
+            combinations = getCategoryCombinations(attributes, maxRequests);
+        }
+        if (combinations == null || combinations.size() < 2) {
+            return null;
+        }
+        if (combinations.size() > maxRequests) {
+            throw new IllegalArgumentException("Too many individual decisions in request: " + combinations.size());
+        }
+
+        List<String> requests = new ArrayList<>(combinations.size());
+        for (List<Element> combination : combinations) {
+            requests.add(createRequest(request, combination));
+        }
+        return requests;
+    }
+
+    /**
+     * merge the xml responses of individual requests into one response with one result per request
+     * @param responses the xml xacml responses (each with a single result)
+     * @return the merged xml xacml response
+     */
+    public static String mergeResponses(List<String> responses) {
+        //all responses are encoded by balana with the same root element and namespace,
+        //so the results can be concatenated as they are
+        String first = responses.get(0);
+        int rootStart = first.indexOf("<Response");
+        int rootEnd = first.indexOf('>', rootStart) + 1;
+
+        StringBuilder merged = new StringBuilder(first.substring(0, rootEnd));
+        for (String response : responses) {
+            int start = response.indexOf('>', response.indexOf("<Response")) + 1;
+            int end = response.lastIndexOf("</Response>");
+            merged.append(response, start, end);
+        }
+        merged.append("</Response>");
+        return merged.toString();
+    }
+
+    /**
+     * combinations for repeated categories: cartesian product of the Attributes of each category
+     * Attributes of repeated categories are included in the result to identify the individual decisions
+     */
+    private static List<List<Element>> getCategoryCombinations(List<Element> attributes, int maxRequests) {
+        Map<String, List<Element>> byCategory = new LinkedHashMap<>();
+        for (Element element : attributes) {
+            byCategory.computeIfAbsent(element.getAttribute("Category"), c -> new ArrayList<>()).add(element);
+        }
+
+        List<List<Element>> combinations = new ArrayList<>();
+        combinations.add(new ArrayList<>());
+        for (List<Element> categoryAttributes : byCategory.values()) {
+            if (categoryAttributes.size() > 1) {
+                for (Element element : categoryAttributes) {
+                    for (Element attribute : getChildren(element, "Attribute")) {
+                        attribute.setAttribute("IncludeInResult", "true");
+                    }
+                }
+            }
+            List<List<Element>> next = new ArrayList<>();
+            for (List<Element> combination : combinations) {
+                for (Element element : categoryAttributes) {
+                    List<Element> extended = new ArrayList<>(combination);
+                    extended.add(element);
+                    next.add(extended);
+                    if (next.size() > maxRequests) {
+                        throw new IllegalArgumentException("Too many individual decisions in request");
+                    }
+                }
+            }
+            combinations = next;
+        }
+        return combinations;
+    }
+
+    /**
+     * combinations for MultiRequests: one per RequestReference with the referenced Attributes
+     */
+    private static List<List<Element>> getReferencedCombinations(List<Element> attributes, Element multiRequests) {
+        Map<String, Element> byId = new HashMap<>();
+        for (Element element : attributes) {
+            String id = element.getAttributeNS(XMLConstants.XML_NS_URI, "id");
+            if (!id.isEmpty()) {
+                byId.put(id, element);
+            }
+        }
+
+        List<List<Element>> combinations = new ArrayList<>();
+        for (Element requestReference : getChildren(multiRequests, "RequestReference")) {
+            List<Element> combination = new ArrayList<>();
+            for (Element reference : getChildren(requestReference, "AttributesReference")) {
+                Element referenced = byId.get(reference.getAttribute("ReferenceId"));
+                if (referenced == null) {
+                    throw new IllegalArgumentException("Unknown attributes reference: " + reference.getAttribute("ReferenceId"));
+                }
+                combination.add(referenced);
+            }
+            combinations.add(combination);
+        }
+        return combinations;
+    }
+
+    /**
+     * create a single request with the settings of the original request and the given Attributes
+     */
+    private static String createRequest(Element originalRequest, List<Element> attributes) {
+        try {
+            Document doc = newDocumentBuilder().newDocument();
+            //shallow copy: keeps ReturnPolicyIdList and CombinedDecision
+            Element request = (Element) doc.importNode(originalRequest, false);
+            doc.appendChild(request);
+            for (Element element : attributes) {
+                request.appendChild(doc.importNode(element, true));
+            }
+
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(doc), new StreamResult(writer));
+            return writer.toString();
+        } catch (ParserConfigurationException | TransformerException e) {
+            throw new IllegalStateException("Could not create individual request", e);
+        }
+    }
+
+    private static Element parse(String xacmlRequest) {
+        try {
+            InputSource is = new InputSource(new StringReader(xacmlRequest));
+            return newDocumentBuilder().parse(is).getDocumentElement();
+        } catch (IOException | ParserConfigurationException | SAXException e) {
+            return null;
+        }
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilderFactory factory = Utils.getSecuredDocumentBuilderFactory();
+        factory.setIgnoringComments(true);
+        factory.setNamespaceAware(true);
+        factory.setValidating(false);
+        return factory.newDocumentBuilder();
+    }
+
+    private static List<Element> getChildren(Element parent, String localName) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && localName.equals(node.getLocalName())
+                    && XACML3_NS.equals(node.getNamespaceURI())) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+}
@@ -0,0 +1,150 @@
+package imi.ehealth.fhirlock;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Watches the policy collection for changes and invalidates the cached policies and decisions of the changed patient
+ * Uses a mongo change stream, which requires a replica set; without one the caches rely on their ttl and /invalidate
+ * The stream is reopened with increasing delay, whenever it is closed or can't be opened; as changes might have been
+ * missed meanwhile, everything is invalidated after reopening.
+ * Changes of base policies are also passed to the {@link AccessListListener}s, as they contain the access lists
+ */
+public class PolicyChangeWatcher implements Runnable {
+    private static final Logger log = Logger.getLogger( PolicyChangeWatcher.class.getName() );
+
+    private final MongoQuery query;
+    private final PolicyEvaluator evaluator;
+    private final List<AccessListListener> accessListListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean watching = false;
+
+    //delay before reopening the change stream, doubled after each failed attempt
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+
+    /**
+     * create a new watcher
+     * @param query query for the policy collection
+     * @param evaluator the evaluator whose caches are invalidated
+     */
+    public PolicyChangeWatcher(MongoQuery query, PolicyEvaluator evaluator) {
+        this.query = query;
+        this.evaluator = evaluator;
+    }
+
+    /**
+     * start watching in a background thread
+     * @param query query for the policy collection
+     * @param evaluator the evaluator whose caches are invalidated
+     * @return the watcher
+     */
+    public static PolicyChangeWatcher start(MongoQuery query, PolicyEvaluator evaluator) {
+        PolicyChangeWatcher watcher = new PolicyChangeWatcher(query, evaluator);
+        Thread thread = new Thread(watcher, "policy-change-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return watcher;
+    }
+
+    /**
+     * tells, if the change stream is open, i.e. all changes are noticed
+     * @return true, if watching
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * notify a listener about changed access lists; it's told right away, if the changes are watched already
+     * @param listener the listener
+     */
+    public synchronized void addAccessListListener(AccessListListener listener) {
+        accessListListeners.add(listener);
+        if (watching) {
+            listener.watchingChanged(true);
+        }
+    }
+
+    @Override
+    public void run() {
+        long retryMillis = MIN_RETRY_MILLIS;
+        boolean missedChanges = false;
+        while (true) {
+            try (MongoCursor<ChangeStreamDocument<Document>> cursor = query.watchPolicyChanges()) {
+                log.info("Watching policy changes..");
+                retryMillis = MIN_RETRY_MILLIS;
+                if (missedChanges) {
+                    //changes while the stream was closed are unknown
+                    evaluator.invalidateAll();
+                    notifyAllAccessListsChanged();
+                }
+                setWatching(true);
+                while (cursor.hasNext()) {
+                    Document policy = cursor.next().getFullDocument();
+                    if (policy != null && policy.getString("target") != null) {
+                        evaluator.invalidatePatient(policy.getString("target"));
+                        if ("base".equals(policy.getString("type"))) {
+                            notifyAccessListChanged(policy.getString("target"), getAccessList(policy));
+                        }
+                    } else {
+                        //e.g. deleted policy: we don't know the patient anymore
+                        evaluator.invalidateAll();
+                        notifyAllAccessListsChanged();
+                    }
+                }
+            } catch (MongoException e) {
+                if (watching || !missedChanges) {
+                    log.warning("Policy change stream not available, caches only expire by ttl or /invalidate until it is reopened: " + e.getMessage());
+                } else {
+                    log.fine("Policy change stream still not available: " + e.getMessage());
+                }
+            } finally {
+                setWatching(false);
+            }
+            missedChanges = true;
+            try {
+                Thread.sleep(retryMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+    }
+
+    private synchronized void setWatching(boolean watching) {
+        if (this.watching == watching) {
+            return;
+        }
+        this.watching = watching;
+        for (AccessListListener listener : accessListListeners) {
+            listener.watchingChanged(watching);
+        }
+    }
+
+    private void notifyAllAccessListsChanged() {
+        for (AccessListListener listener : accessListListeners) {
+            listener.allAccessListsChanged();
+        }
+    }
+
+    private void notifyAccessListChanged(String patientId, List<String> users) {
+        long changedMillis = System.currentTimeMillis();
+        for (AccessListListener listener : accessListListeners) {
+            listener.accessListChanged(patientId, users, changedMillis);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getAccessList(Document policy) {
+        Object accessList = policy.get("accessList");
+        return accessList instanceof List ? (List<String>) accessList : Collections.emptyList();
+    }
+}
@@ -4,14 +4,30 @@ import org.apache.commons.io.FileUtils;
 import org.wso2.balana.*;
 import org.wso2.balana.combine.CombiningAlgFactory;
 import org.wso2.balana.combine.CombiningAlgorithm;
+import org.wso2.balana.ctx.AbstractRequestCtx;
+import org.wso2.balana.ctx.AbstractResult;
+import org.wso2.balana.ctx.RequestCtxFactory;
+import org.wso2.balana.ctx.ResponseCtx;
+import org.wso2.balana.ctx.Status;
+import org.wso2.balana.ctx.xacml3.Result;
+import org.wso2.balana.finder.PolicyFinder;
 import org.wso2.balana.finder.PolicyFinderModule;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -20,7 +36,12 @@ import java.util.logging.Logger;
 public class PolicyEvaluator {
 
     private PDP pdp;
-    private static PolicyEvaluator instance;
+    private MongoDbPolicyFinderModule mongoDbPolicyFinderModule;
+    private DecisionCache decisionCache;
+    //evaluates the individual decisions of multiple decision requests in parallel
+    private ForkJoinPool decisionPool;
+    private int maxMultipleDecisions;
+    private static volatile PolicyEvaluator instance;
 
     private static final Logger log = Logger.getLogger( PolicyEvaluator.class.getName() );
 
@@ -47,36 +68,244 @@ public class PolicyEvaluator {
             //add MongoDbPolicyFinderModule as only finder module
             Set modules = balana.getPdpConfig().getPolicyFinder().getModules();
             modules.clear();
-            MongoDbPolicyFinderModule mongoDbPolicyFinderModule = new MongoDbPolicyFinderModule();
+            mongoDbPolicyFinderModule = new MongoDbPolicyFinderModule();
             modules.add(mongoDbPolicyFinderModule);
             balana.getPdpConfig().getPolicyFinder().setModules(modules);
 
             pdp = new PDP(balana.getPdpConfig());
 
+            ServiceConfiguration serviceConfig = ServiceConfiguration.getConfiguration();
+            decisionCache = new DecisionCache(serviceConfig.getDecisionCacheMaxWeight(), serviceConfig.getDecisionCacheTtl());
+            initDecisionPool(serviceConfig);
+
         } catch (Exception e) {
             log.info(e.getMessage());
             e.printStackTrace();
         }
     }
 
+    /**
+     * create an evaluator with its own pdp, loading the policies from the given store
+     * Unlike the singleton, it doesn't change the default balana configuration, so several evaluators can coexist
+     * (e.g. for benchmarks on an in-memory store)
+     * @param store the policy store
+     * @param decisionCache the decision cache; one with maximum weight 0 caches nothing
+     */
+    public PolicyEvaluator(PolicyStore store, DecisionCache decisionCache) {
+        mongoDbPolicyFinderModule = new MongoDbPolicyFinderModule(store);
+        Set<PolicyFinderModule> modules = new HashSet<>();
+        modules.add(mongoDbPolicyFinderModule);
+        PolicyFinder policyFinder = new PolicyFinder();
+        policyFinder.setModules(modules);
+
+        //attributes and resources are found like in the default configuration
+        PDPConfig defaultConfig = Balana.getInstance().getPdpConfig();
+        pdp = new PDP(new PDPConfig(defaultConfig.getAttributeFinder(), policyFinder,
+                defaultConfig.getResourceFinder(), defaultConfig.isMultipleRequestHandle()));
+
+        this.decisionCache = decisionCache;
+        initDecisionPool(ServiceConfiguration.getConfiguration());
+    }
+
+    private void initDecisionPool(ServiceConfiguration serviceConfig) {
+        int parallelism = serviceConfig.getMultipleDecisionParallelism() > 0
+                ? serviceConfig.getMultipleDecisionParallelism() : Runtime.getRuntime().availableProcessors();
+        decisionPool = new ForkJoinPool(parallelism);
+        maxMultipleDecisions = serviceConfig.getMaxMultipleDecisions();
+    }
+
     /**
      * get the singleton instance of the evaluator and create, if null
      * @return the evaluator instance
      */
     public static PolicyEvaluator getEvaluator(){
         if (PolicyEvaluator.instance == null) {
-            PolicyEvaluator.instance = new PolicyEvaluator();
+            synchronized (PolicyEvaluator.class) {
+                if (PolicyEvaluator.instance == null) {
+                    PolicyEvaluator.instance = new PolicyEvaluator();
+                }
+            }
         }
         return PolicyEvaluator.instance;
     }
 
     /**
      * evaluate a xacml request and return the response
+     * multiple decision requests are split and their individual decisions evaluated in parallel
+     * thread safe: all request state is kept in the {@link EvaluationScope} of the calling thread
      * @param xacmlRequest the xml xacml request
      * @return the xml xacml response
      */
     public String evaluate(String xacmlRequest) {
         log.info("Starting evaluation...");
-        return pdp.evaluate(xacmlRequest);
+        long start = System.nanoTime();
+        try {
+            return evaluateRequest(xacmlRequest);
+        } finally {
+            Metrics.recordEvaluation(System.nanoTime() - start);
+        }
+    }
+
+    private String evaluateRequest(String xacmlRequest) {
+
+        DecisionKey key = DecisionKey.fromRequest(xacmlRequest);
+        if (key == null) {
+            //no single decision: might be a multiple decision request
+            List<String> requests;
+            try {
+                requests = MultipleDecisionRequest.split(xacmlRequest, maxMultipleDecisions);
+            } catch (IllegalArgumentException e) {
+                return createErrorResponse(Status.STATUS_SYNTAX_ERROR, e.getMessage());
+            }
+            if (requests != null) {
+                return evaluateMultiple(requests);
+            }
+        }
+        return evaluateSingle(xacmlRequest, key);
+    }
+
+    /**
+     * evaluate a request with a single decision
+     * @param xacmlRequest the xml xacml request
+     * @param key the key of the request for the decision cache or null, if not cacheable
+     * @return the xml xacml response
+     */
+    private String evaluateSingle(String xacmlRequest, DecisionKey key) {
+        //identical requests are answered from the decision cache
+        if (key != null) {
+            String cachedResponse = decisionCache.get(key);
+            if (cachedResponse != null) {
+                return cachedResponse;
+            }
+        }
+
+        long generation = decisionCache.getGeneration();
+        ResponseCtx responseCtx;
+        String response;
+        try {
+            long start = System.nanoTime();
+            AbstractRequestCtx requestCtx;
+            try {
+                requestCtx = RequestCtxFactory.getFactory().getRequestCtx(xacmlRequest);
+            } catch (ParsingException e) {
+                return createErrorResponse(Status.STATUS_SYNTAX_ERROR, e.getMessage());
+            }
+            long parsed = System.nanoTime();
+            Metrics.recordPhase(Metrics.PHASE_PARSE, parsed - start);
+
+            responseCtx = pdp.evaluate(requestCtx);
+            long evaluated = System.nanoTime();
+            //combining: the evaluation without finding and loading the policies (recorded by the finder module)
+            EvaluationScope scope = EvaluationScope.current();
+            long finderNanos = scope != null ? scope.getFinderNanos() : 0;
+            Metrics.recordPhase(Metrics.PHASE_COMBINE, Math.max(0, evaluated - parsed - finderNanos));
+            Metrics.recordDecisions(responseCtx);
+
+            response = responseCtx.encode();
+            Metrics.recordPhase(Metrics.PHASE_SERIALIZE, System.nanoTime() - evaluated);
+        } finally {
+            EvaluationScope.end();
+        }
+        if (key != null) {
+            decisionCache.put(key, responseCtx, response, generation);
+        }
+        return response;
+    }
+
+    /**
+     * evaluate the individual requests of a multiple decision request in parallel
+     * @param requests the individual xml xacml requests
+     * @return one xml xacml response with the results of all requests (in request order)
+     */
+    private String evaluateMultiple(List<String> requests) {
+        log.info("Evaluating " + requests.size() + " individual decisions..");
+        List<Callable<String>> tasks = new ArrayList<>(requests.size());
+        for (String request : requests) {
+            tasks.add(() -> evaluateSingle(request, DecisionKey.fromRequest(request)));
+        }
+
+        List<String> responses = new ArrayList<>(requests.size());
+        try {
+            for (Future<String> future : decisionPool.invokeAll(tasks)) {
+                responses.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return createErrorResponse(Status.STATUS_PROCESSING_ERROR, "evaluation interrupted");
+        } catch (ExecutionException e) {
+            log.info(e.getCause().getMessage());
+            return createErrorResponse(Status.STATUS_PROCESSING_ERROR, String.valueOf(e.getCause().getMessage()));
+        }
+        return MultipleDecisionRequest.mergeResponses(responses);
+    }
+
+    /**
+     * create an indeterminate response
+     * @param statusCode the xacml status code
+     * @param message the status message
+     * @return the xml xacml response
+     */
+    private String createErrorResponse(String statusCode, String message) {
+        ArrayList<String> code = new ArrayList<String>();
+        code.add(statusCode);
+        Status status = new Status(code, message);
+        return new ResponseCtx(new Result(AbstractResult.DECISION_INDETERMINATE, status)).encode();
+    }
+
+    /**
+     * compile all base policies and the policies of the patients evaluated before the last shutdown,
+     * so the first requests after a restart don't have to
+     * The evaluated patients are saved on shutdown for the next warm-up
+     */
+    public void warmUp() {
+        ServiceConfiguration serviceConfig = ServiceConfiguration.getConfiguration();
+        RecentPatients recentPatients = mongoDbPolicyFinderModule.getRecentPatients();
+        Path recentPatientsFile = Paths.get(serviceConfig.getWarmUpRecentPatientsFile());
+        recentPatients.load(recentPatientsFile);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> recentPatients.save(recentPatientsFile), "recent-patients-save"));
+
+        List<String> patientIds = recentPatients.getPatientIds();
+        log.info("Start warm-up for " + patientIds.size() + " recent patients..");
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(serviceConfig.getWarmUpParallelism() > 0
+                ? serviceConfig.getWarmUpParallelism() : Runtime.getRuntime().availableProcessors());
+        try {
+            int compiled = mongoDbPolicyFinderModule.warmUp(patientIds, pool);
+            log.info("Warm-up compiled " + compiled + " policies in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //not fatal: the policies are loaded on demand
+            log.warning("Warm-up failed after " + (System.currentTimeMillis() - start) + " ms: " + e.getCause().getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * drop cached policies and decisions of a patient, e.g. after the patient's policies changed
+     * @param patientId the patient id
+     */
+    public void invalidatePatient(String patientId) {
+        log.info("Invalidate cached policies of patient " + patientId);
+        mongoDbPolicyFinderModule.invalidatePatient(patientId);
+        decisionCache.invalidatePatient(patientId);
+    }
+
+    /**
+     * drop all cached policies and decisions
+     */
+    public void invalidateAll() {
+        log.info("Invalidate all cached policies");
+        mongoDbPolicyFinderModule.invalidateAll();
+        decisionCache.invalidateAll();
+    }
+
+    public DecisionCache getDecisionCache() {
+        return decisionCache;
+    }
+
+    public MongoDbPolicyFinderModule getFinderModule() {
+        return mongoDbPolicyFinderModule;
     }
 }
@@ -0,0 +1,185 @@
+package imi.ehealth.fhirlock;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Creates the indexes of the policy collection that the queries of {@link MongoQuery} rely on
+ * and checks with explain that the queries are served by an index
+ */
+public class PolicyIndexes {
+    private static final Logger log = Logger.getLogger( PolicyIndexes.class.getName() );
+
+    //index exists with the same keys, but another name or other options
+    private static final int INDEX_OPTIONS_CONFLICT = 85;
+    private static final int INDEX_KEY_SPECS_CONFLICT = 86;
+
+    private final MongoDatabase database;
+    private final MongoCollection<Document> collection;
+
+    /**
+     * create a new instance on the client of a connection manager
+     * @param connectionManager the connection manager
+     */
+    public PolicyIndexes(MongoConnectionManager connectionManager) {
+        this.database = connectionManager.getDatabase();
+        this.collection = connectionManager.getPolicyCollection();
+    }
+
+    /**
+     * create the indexes, if no index with the same keys exists yet (whatever its name)
+     * Failures are only logged: the service also works without the indexes, just slower
+     */
+    public void ensureIndexes() {
+        long start = System.currentTimeMillis();
+        Set<String> existingKeys;
+        try {
+            existingKeys = getIndexKeys();
+        } catch (MongoException e) {
+            log.warning("Policy indexes can't be listed: " + e.getMessage());
+            return;
+        }
+        //policy sets of a patient (type + target), base policies (type prefix)
+        ensureIndex(existingKeys, "type", "target");
+        //patient access list: multikey on accessList, sorted by target
+        ensureIndex(existingKeys, "type", "accessList", "target");
+        //referenced policies
+        ensureIndex(existingKeys, "name");
+        //all policies of a patient
+        ensureIndex(existingKeys, "target");
+        log.info("Policy indexes ensured in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * create an ascending index, unless one with these keys exists
+     */
+    private void ensureIndex(Set<String> existingKeys, String... fields) {
+        String keys = String.join(",", fields);
+        if (existingKeys.contains(keys)) {
+            return;
+        }
+        try {
+            collection.createIndex(Indexes.ascending(fields), new IndexOptions().background(true));
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() == INDEX_OPTIONS_CONFLICT || e.getErrorCode() == INDEX_KEY_SPECS_CONFLICT) {
+                log.info("Policy index on " + keys + " exists with other options: " + e.getErrorMessage());
+            } else {
+                log.warning("Policy index on " + keys + " can't be created: " + e.getMessage());
+            }
+        } catch (MongoException e) {
+            log.warning("Policy index on " + keys + " can't be created: " + e.getMessage());
+        }
+    }
+
+    /**
+     * get the keys of the existing ascending indexes, e.g. "type,target"
+     */
+    private Set<String> getIndexKeys() {
+        Set<String> indexKeys = new HashSet<>();
+        for (Document index : collection.listIndexes()) {
+            Document key = index.get("key", Document.class);
+            if (key == null) {
+                continue;
+            }
+            List<String> fields = new ArrayList<>();
+            boolean ascending = true;
+            for (Map.Entry<String, Object> field : key.entrySet()) {
+                fields.add(field.getKey());
+                //the direction may be stored as int, long or double
+                ascending &= field.getValue() instanceof Number && ((Number) field.getValue()).intValue() == 1;
+            }
+            if (ascending) {
+                indexKeys.add(String.join(",", fields));
+            }
+        }
+        return indexKeys;
+    }
+
+    /**
+     * explain the queries of {@link MongoQuery} and find those that scan the whole collection
+     * If the plans can't be explained (e.g. the database isn't reachable), the remaining queries are left unverified
+     * @return the names of the queries without index
+     */
+    public List<String> findCollectionScans() {
+        //the values don't matter for the plan, only the fields
+        List<String> collectionScans = new ArrayList<>();
+        try {
+            checkQuery("policySetsByTarget", new Document("type", "set").append("target", "-"), null, collectionScans);
+            checkQuery("policiesByType", new Document("type", "base"), null, collectionScans);
+            checkQuery("policiesByName", new Document("name", "-"), null, collectionScans);
+            checkQuery("policiesByTarget", new Document("target", "-"), null, collectionScans);
+            checkQuery("patientAccessList", new Document("type", "base").append("accessList", "-"),
+                    new Document("target", 1), collectionScans);
+        } catch (MongoException e) {
+            log.warning("Policy query plans can't be verified: " + e.getMessage());
+        }
+        return collectionScans;
+    }
+
+    /**
+     * ensure the indexes and verify the query plans
+     * Database errors are only logged, so the service also starts while the database is down
+     * @param failOnCollectionScan throw, if a query is found not to be served by an index
+     * @throws IllegalStateException if failOnCollectionScan is set and a query scans the whole collection
+     */
+    public void bootstrap(boolean failOnCollectionScan) {
+        ensureIndexes();
+        List<String> collectionScans = findCollectionScans();
+        if (!collectionScans.isEmpty() && failOnCollectionScan) {
+            throw new IllegalStateException("Policy queries without index: " + collectionScans);
+        }
+    }
+
+    /**
+     * explain a query and add its name to the collection scans, if the winning plan scans the collection
+     * @throws MongoException if the query can't be explained
+     */
+    private void checkQuery(String name, Document filter, Document sort, List<String> collectionScans) {
+        Document find = new Document("find", collection.getNamespace().getCollectionName()).append("filter", filter);
+        if (sort != null) {
+            find.append("sort", sort);
+        }
+        Document explain = database.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+        Document queryPlanner = explain.get("queryPlanner", Document.class);
+        if (queryPlanner == null || hasCollectionScan(queryPlanner.get("winningPlan", Document.class))) {
+            log.warning("Query " + name + " is not served by an index: " + filter.toJson());
+            collectionScans.add(name);
+        }
+    }
+
+    /**
+     * walk a plan stage and its input stages
+     */
+    @SuppressWarnings("unchecked")
+    private boolean hasCollectionScan(Document stage) {
+        if (stage == null) {
+            return true;
+        }
+        if ("COLLSCAN".equals(stage.getString("stage"))) {
+            return true;
+        }
+        if (stage.get("inputStage") instanceof Document && hasCollectionScan((Document) stage.get("inputStage"))) {
+            return true;
+        }
+        if (stage.get("inputStages") instanceof List) {
+            for (Object input : (List<Object>) stage.get("inputStages")) {
+                if (input instanceof Document && hasCollectionScan((Document) input)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
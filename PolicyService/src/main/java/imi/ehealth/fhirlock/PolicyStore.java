@@ -0,0 +1,40 @@
+package imi.ehealth.fhirlock;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source of the policy xmls for the {@link MongoDbPolicyFinderModule}
+ * Implemented by {@link MongoQuery}; other implementations (e.g. in memory) allow running the pdp without a database
+ */
+public interface PolicyStore {
+
+    /**
+     * load the policy sets of a patient
+     * @param target the target = patientid
+     * @return the policy set xmls
+     */
+    List<String> loadPolicySetsByTarget(String target);
+
+    /**
+     * load all policies of a type, e.g. "base"
+     * @param type the type
+     * @return the policy xmls
+     */
+    List<String> loadPoliciesByType(String type);
+
+    /**
+     * load all policies with a name
+     * @param name the name, e.g. urn:patient:1:policies:base
+     * @return the policy xmls
+     */
+    List<String> loadPoliciesByName(String name);
+
+    /**
+     * load all policies with one of the given names at once
+     * @param names the names
+     * @return the policy xmls by name; names without policy are missing
+     */
+    Map<String, List<String>> loadPoliciesByNames(Collection<String> names);
+}
@@ -0,0 +1,211 @@
+package imi.ehealth.fhirlock;
+
+import org.wso2.balana.AbstractPolicy;
+import org.wso2.balana.AbstractTarget;
+import org.wso2.balana.TargetMatch;
+import org.wso2.balana.attr.AttributeDesignator;
+import org.wso2.balana.attr.AttributeValue;
+import org.wso2.balana.attr.BagAttribute;
+import org.wso2.balana.attr.StringAttribute;
+import org.wso2.balana.cond.EvaluationResult;
+import org.wso2.balana.ctx.EvaluationCtx;
+import org.wso2.balana.utils.Constants.PolicyConstants;
+import org.wso2.balana.xacml3.AllOfSelection;
+import org.wso2.balana.xacml3.AnyOfSelection;
+import org.wso2.balana.xacml3.Target;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Compiled policies with an index over their targets
+ * A policy is indexed by an attribute (patient id, resource type or subject id), if one AnyOf of its target
+ * only matches requests with one of some fixed values of that attribute (string-equal). Only the policies indexed with
+ * the request's value and the policies without index are candidates that need to be matched against a request.
+ */
+public class PolicyTargetIndex {
+    private static final String STRING_EQUAL = "urn:oasis:names:tc:xacml:1.0:function:string-equal";
+
+    //indexed attribute ids, in order of preference
+    private static final List<String> INDEXED_ATTRIBUTES = Arrays.asList(
+            "urn:oasis:names:tc:xacml:1.0:resource:patient-id",
+            "urn:oasis:names:tc:xacml:1.0:resource:resource-type",
+            "urn:oasis:names:tc:xacml:1.0:subject:subject-id");
+
+    private static final URI STRING_TYPE = URI.create(PolicyConstants.DataType.STRING);
+
+    private final List<AbstractPolicy> policies;
+
+    //policy positions by designator and value
+    private final Map<Designator, Map<String, BitSet>> index = new HashMap<>();
+    //all positions indexed by a designator (candidates, if the request lacks the attribute)
+    private final Map<Designator, BitSet> indexedPositions = new HashMap<>();
+    //positions of the policies without index (always candidates)
+    private final BitSet unindexedPositions = new BitSet();
+
+    /**
+     * create the index
+     * @param policies the compiled policies
+     */
+    public PolicyTargetIndex(List<AbstractPolicy> policies) {
+        this.policies = policies;
+        for (int i = 0; i < policies.size(); i++) {
+            if (!addToIndex(policies.get(i), i)) {
+                unindexedPositions.set(i);
+            }
+        }
+    }
+
+    /**
+     * get all policies
+     * @return the policies
+     */
+    public List<AbstractPolicy> getPolicies() {
+        return policies;
+    }
+
+    /**
+     * get the policies whose target can possibly match the request, in their original order
+     * The candidates still have to be matched, but all other policies are known not to match
+     * @param context the request
+     * @return the candidate policies
+     */
+    public List<AbstractPolicy> getCandidates(EvaluationCtx context) {
+        if (index.isEmpty()) {
+            return policies;
+        }
+        BitSet candidates = (BitSet) unindexedPositions.clone();
+        for (Map.Entry<Designator, Map<String, BitSet>> entry : index.entrySet()) {
+            List<String> values = getRequestValues(context, entry.getKey());
+            if (values == null) {
+                //attribute not available: no policy indexed by it can be excluded
+                candidates.or(indexedPositions.get(entry.getKey()));
+                continue;
+            }
+            for (String value : values) {
+                BitSet positions = entry.getValue().get(value);
+                if (positions != null) {
+                    candidates.or(positions);
+                }
+            }
+        }
+
+        List<AbstractPolicy> result = new ArrayList<>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            result.add(policies.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * index a policy by the first indexable attribute of its target
+     * @return false, if the policy can't be indexed
+     */
+    private boolean addToIndex(AbstractPolicy policy, int position) {
+        AbstractTarget target = policy.getTarget();
+        if (!(target instanceof Target)) {
+            return false;
+        }
+        List<AnyOfSelection> anyOfs = ((Target) target).getAnyOfSelections();
+        if (anyOfs == null) {
+            return false;
+        }
+        for (String attributeId : INDEXED_ATTRIBUTES) {
+            for (AnyOfSelection anyOf : anyOfs) {
+                Designator designator = null;
+                Set<String> values = new HashSet<>();
+                //every AllOf must require a value of the same attribute, otherwise the AnyOf can match without it
+                for (AllOfSelection allOf : anyOf.getAllOfSelections()) {
+                    Designator matchDesignator = null;
+                    for (TargetMatch match : allOf.getMatches()) {
+                        Designator candidate = getIndexableDesignator(match, attributeId);
+                        if (candidate != null && (designator == null || designator.equals(candidate))) {
+                            matchDesignator = candidate;
+                            values.add(((StringAttribute) match.getMatchValue()).getValue());
+                            break;
+                        }
+                    }
+                    if (matchDesignator == null) {
+                        designator = null;
+                        break;
+                    }
+                    designator = matchDesignator;
+                }
+                if (designator != null && !values.isEmpty()) {
+                    Map<String, BitSet> byValue = index.computeIfAbsent(designator, d -> new HashMap<>());
+                    for (String value : values) {
+                        byValue.computeIfAbsent(value, v -> new BitSet()).set(position);
+                    }
+                    indexedPositions.computeIfAbsent(designator, d -> new BitSet()).set(position);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * get the designator of a string-equal match of a fixed value with an attribute
+     * @return the designator or null, if the match can't be indexed
+     */
+    private Designator getIndexableDesignator(TargetMatch match, String attributeId) {
+        if (match.getMatchFunction() == null || !STRING_EQUAL.equals(match.getMatchFunction().getIdentifier().toString())) {
+            return null;
+        }
+        if (!(match.getMatchValue() instanceof StringAttribute) || !(match.getMatchEvaluatable() instanceof AttributeDesignator)) {
+            return null;
+        }
+        AttributeDesignator attributeDesignator = (AttributeDesignator) match.getMatchEvaluatable();
+        if (!attributeId.equals(attributeDesignator.getId().toString()) || attributeDesignator.getCategory() == null) {
+            return null;
+        }
+        return new Designator(attributeDesignator.getCategory(), attributeDesignator.getId());
+    }
+
+    /**
+     * get the string values of an attribute of the request
+     * @return the values or null, if the attribute couldn't be resolved
+     */
+    private List<String> getRequestValues(EvaluationCtx context, Designator designator) {
+        EvaluationResult result = context.getAttribute(STRING_TYPE, designator.id, null, designator.category);
+        if (result == null || result.indeterminate() || !(result.getAttributeValue() instanceof BagAttribute)) {
+            return null;
+        }
+        BagAttribute bag = (BagAttribute) result.getAttributeValue();
+        if (bag.isEmpty()) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        Iterator it = bag.iterator();
+        while (it.hasNext()) {
+            AttributeValue value = (AttributeValue) it.next();
+            if (value instanceof StringAttribute) {
+                values.add(((StringAttribute) value).getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * category and id of an attribute
+     */
+    private static final class Designator {
+        private final URI category;
+        private final URI id;
+
+        private Designator(URI category, URI id) {
+            this.category = category;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Designator && category.equals(((Designator) o).category) && id.equals(((Designator) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * category.hashCode() + id.hashCode();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package imi.ehealth.fhirlock;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The most recently evaluated patients, to preload their policies after a restart
+ * Bounded to a maximum number of patients; the least recently used ones are dropped first
+ */
+public class RecentPatients {
+    private static final Logger log = Logger.getLogger( RecentPatients.class.getName() );
+
+    private final int capacity;
+    private final LinkedHashMap<String, Boolean> patients;
+
+    /**
+     * create a new list
+     * @param capacity maximum number of remembered patients
+     */
+    public RecentPatients(int capacity) {
+        this.capacity = capacity;
+        this.patients = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > RecentPatients.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * remember a patient as most recently used
+     * @param patientId the patient
+     */
+    public synchronized void record(String patientId) {
+        if (capacity > 0 && patientId != null) {
+            patients.put(patientId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * get the remembered patients
+     * @return the patient ids, most recently used first
+     */
+    public synchronized List<String> getPatientIds() {
+        List<String> patientIds = new ArrayList<>(patients.keySet());
+        Collections.reverse(patientIds);
+        return patientIds;
+    }
+
+    /**
+     * load the patients saved by a previous run; a missing file is ignored
+     * @param file the file with one patient id per line, most recently used first
+     */
+    public void load(Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            List<String> patientIds = Files.readAllLines(file, StandardCharsets.UTF_8);
+            //insert the least recently used first to keep the order
+            Collections.reverse(patientIds);
+            for (String patientId : patientIds) {
+                if (!patientId.trim().isEmpty()) {
+                    record(patientId.trim());
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Could not read recent patients from " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * save the patients for the next run
+     * @param file the file, gets one patient id per line, most recently used first
+     */
+    public void save(Path file) {
+        try {
+            Files.write(file, getPatientIds(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warning("Could not save recent patients to " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package imi.ehealth.fhirlock;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+/**
+ * Configuration for the policy service itself (caches etc.)
+ * Missing entries in the config file fall back to the defaults below
+ */
+public class ServiceConfiguration {
+    private static final Logger log = Logger.getLogger( ServiceConfiguration.class.getName() );
+
+    private long policyCacheMaxWeight = 16000000;
+    private long policyCacheTtl = 300;
+    private boolean basePolicyCache = true;
+    private long decisionCacheMaxWeight = 8000000;
+    private long decisionCacheTtl = 60;
+    private boolean watchPolicyChanges = true;
+    private int multipleDecisionParallelism = 0;
+    private int maxMultipleDecisions = 1000;
+    private int patientAccessListBatchSize = 1000;
+    private boolean ensureIndexes = true;
+    private boolean failOnCollectionScan = false;
+    private boolean warmUp = true;
+    private int warmUpRecentPatients = 1000;
+    private String warmUpRecentPatientsFile = "recent-patients.txt";
+    private int warmUpParallelism = 0;
+    private int combineParallelism = 0;
+    private int combineParallelThreshold = 64;
+    private long referenceCacheMaxWeight = 8000000;
+    private long referenceCacheTtl = 300;
+    private long referenceNegativeCacheTtl = 30;
+    private int serverMaxThreads = 200;
+    private int serverMinThreads = 8;
+    private int serverIdleTimeout = 60000;
+    private int maxInFlightRequests = 32;
+    private int maxQueuedRequests = 100;
+    private long maxQueueWait = 500;
+    private int retryAfter = 1;
+
+    private static volatile ServiceConfiguration configuration;
+
+    /**
+     * get the configuration loaded from the config file; the file is only read once
+     * @return the configuration
+     */
+    public static ServiceConfiguration getConfiguration() {
+        if (configuration == null) {
+            synchronized (ServiceConfiguration.class) {
+                if (configuration == null) {
+                    ServiceConfiguration config = new ServiceConfiguration();
+                    config.load();
+                    configuration = config;
+                }
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * maximum weight of the compiled policy cache (sum of policy xml lengths)
+     * @return the maximum weight
+     */
+    public long getPolicyCacheMaxWeight() {
+        return policyCacheMaxWeight;
+    }
+
+    public void setPolicyCacheMaxWeight(long policyCacheMaxWeight) {
+        this.policyCacheMaxWeight = policyCacheMaxWeight;
+    }
+
+    /**
+     * time to live of a compiled policy cache entry
+     * @return ttl in seconds
+     */
+    public long getPolicyCacheTtl() {
+        return policyCacheTtl;
+    }
+
+    public void setPolicyCacheTtl(long policyCacheTtl) {
+        this.policyCacheTtl = policyCacheTtl;
+    }
+
+    /**
+     * whether the compiled base policies of all patients (all-patients request) are cached, for the policy cache ttl
+     * @return true, if cached
+     */
+    public boolean isBasePolicyCache() {
+        return basePolicyCache;
+    }
+
+    public void setBasePolicyCache(boolean basePolicyCache) {
+        this.basePolicyCache = basePolicyCache;
+    }
+
+    /**
+     * maximum weight of the decision cache (sum of cached request key and response lengths)
+     * @return the maximum weight
+     */
+    public long getDecisionCacheMaxWeight() {
+        return decisionCacheMaxWeight;
+    }
+
+    public void setDecisionCacheMaxWeight(long decisionCacheMaxWeight) {
+        this.decisionCacheMaxWeight = decisionCacheMaxWeight;
+    }
+
+    /**
+     * time to live of a cached decision
+     * @return ttl in seconds
+     */
+    public long getDecisionCacheTtl() {
+        return decisionCacheTtl;
+    }
+
+    public void setDecisionCacheTtl(long decisionCacheTtl) {
+        this.decisionCacheTtl = decisionCacheTtl;
+    }
+
+    /**
+     * whether the policy collection is watched for changes to invalidate the caches
+     * @return true, if watched
+     */
+    public boolean isWatchPolicyChanges() {
+        return watchPolicyChanges;
+    }
+
+    public void setWatchPolicyChanges(boolean watchPolicyChanges) {
+        this.watchPolicyChanges = watchPolicyChanges;
+    }
+
+    /**
+     * number of threads evaluating the individual decisions of a multiple decision request
+     * @return the parallelism, 0 for the number of available processors
+     */
+    public int getMultipleDecisionParallelism() {
+        return multipleDecisionParallelism;
+    }
+
+    public void setMultipleDecisionParallelism(int multipleDecisionParallelism) {
+        this.multipleDecisionParallelism = multipleDecisionParallelism;
+    }
+
+    /**
+     * maximum number of individual decisions in one multiple decision request
+     * @return the maximum
+     */
+    public int getMaxMultipleDecisions() {
+        return maxMultipleDecisions;
+    }
+
+    public void setMaxMultipleDecisions(int maxMultipleDecisions) {
+        this.maxMultipleDecisions = maxMultipleDecisions;
+    }
+
+    /**
+     * number of patient ids fetched from the database at once while streaming a patient access list
+     * @return the batch size
+     */
+    public int getPatientAccessListBatchSize() {
+        return patientAccessListBatchSize;
+    }
+
+    public void setPatientAccessListBatchSize(int patientAccessListBatchSize) {
+        this.patientAccessListBatchSize = patientAccessListBatchSize;
+    }
+
+    /**
+     * whether the indexes of the policy collection are created and verified at startup
+     * @return true, if ensured
+     */
+    public boolean isEnsureIndexes() {
+        return ensureIndexes;
+    }
+
+    public void setEnsureIndexes(boolean ensureIndexes) {
+        this.ensureIndexes = ensureIndexes;
+    }
+
+    /**
+     * whether the startup fails, if a policy query isn't served by an index
+     * @return true, if the startup fails
+     */
+    public boolean isFailOnCollectionScan() {
+        return failOnCollectionScan;
+    }
+
+    public void setFailOnCollectionScan(boolean failOnCollectionScan) {
+        this.failOnCollectionScan = failOnCollectionScan;
+    }
+
+    /**
+     * whether base policies and policies of recent patients are compiled before the service starts
+     * @return true, if warmed up
+     */
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * maximum number of recently evaluated patients whose policies are preloaded at startup
+     * @return the number of patients
+     */
+    public int getWarmUpRecentPatients() {
+        return warmUpRecentPatients;
+    }
+
+    public void setWarmUpRecentPatients(int warmUpRecentPatients) {
+        this.warmUpRecentPatients = warmUpRecentPatients;
+    }
+
+    /**
+     * file the recently evaluated patients are saved to on shutdown
+     * @return the file path
+     */
+    public String getWarmUpRecentPatientsFile() {
+        return warmUpRecentPatientsFile;
+    }
+
+    public void setWarmUpRecentPatientsFile(String warmUpRecentPatientsFile) {
+        this.warmUpRecentPatientsFile = warmUpRecentPatientsFile;
+    }
+
+    /**
+     * number of threads compiling policies during the warm-up
+     * @return the parallelism, 0 for the number of available processors
+     */
+    public int getWarmUpParallelism() {
+        return warmUpParallelism;
+    }
+
+    public void setWarmUpParallelism(int warmUpParallelism) {
+        this.warmUpParallelism = warmUpParallelism;
+    }
+
+    /**
+     * number of threads evaluating the base policies of the all-patients request
+     * @return the parallelism, 0 for the number of available processors
+     */
+    public int getCombineParallelism() {
+        return combineParallelism;
+    }
+
+    public void setCombineParallelism(int combineParallelism) {
+        this.combineParallelism = combineParallelism;
+    }
+
+    /**
+     * minimum number of base policies for a parallel evaluation of the all-patients request
+     * @return the threshold
+     */
+    public int getCombineParallelThreshold() {
+        return combineParallelThreshold;
+    }
+
+    public void setCombineParallelThreshold(int combineParallelThreshold) {
+        this.combineParallelThreshold = combineParallelThreshold;
+    }
+
+    /**
+     * maximum weight of the resolved policy reference cache (sum of referenced policy xml lengths)
+     * @return the maximum weight
+     */
+    public long getReferenceCacheMaxWeight() {
+        return referenceCacheMaxWeight;
+    }
+
+    public void setReferenceCacheMaxWeight(long referenceCacheMaxWeight) {
+        this.referenceCacheMaxWeight = referenceCacheMaxWeight;
+    }
+
+    /**
+     * time to live of a resolved policy reference
+     * @return ttl in seconds
+     */
+    public long getReferenceCacheTtl() {
+        return referenceCacheTtl;
+    }
+
+    public void setReferenceCacheTtl(long referenceCacheTtl) {
+        this.referenceCacheTtl = referenceCacheTtl;
+    }
+
+    /**
+     * time to live of a policy reference that couldn't be resolved
+     * @return ttl in seconds
+     */
+    public long getReferenceNegativeCacheTtl() {
+        return referenceNegativeCacheTtl;
+    }
+
+    public void setReferenceNegativeCacheTtl(long referenceNegativeCacheTtl) {
+        this.referenceNegativeCacheTtl = referenceNegativeCacheTtl;
+    }
+
+    /**
+     * maximum number of threads of the http server
+     * @return the maximum
+     */
+    public int getServerMaxThreads() {
+        return serverMaxThreads;
+    }
+
+    public void setServerMaxThreads(int serverMaxThreads) {
+        this.serverMaxThreads = serverMaxThreads;
+    }
+
+    /**
+     * minimum number of threads of the http server
+     * @return the minimum
+     */
+    public int getServerMinThreads() {
+        return serverMinThreads;
+    }
+
+    public void setServerMinThreads(int serverMinThreads) {
+        this.serverMinThreads = serverMinThreads;
+    }
+
+    /**
+     * time after which idle threads of the http server are stopped
+     * @return timeout in ms
+     */
+    public int getServerIdleTimeout() {
+        return serverIdleTimeout;
+    }
+
+    public void setServerIdleTimeout(int serverIdleTimeout) {
+        this.serverIdleTimeout = serverIdleTimeout;
+    }
+
+    /**
+     * maximum number of /evaluate and /patientAccessList requests processed at the same time
+     * @return the maximum
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * maximum number of requests waiting for processing; further requests are rejected
+     * @return the maximum
+     */
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * maximum time a request waits for processing before it is rejected
+     * @return wait time in ms
+     */
+    public long getMaxQueueWait() {
+        return maxQueueWait;
+    }
+
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * Retry-After of rejected requests
+     * @return seconds
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * load configuration from config file
+     */
+    public void load() {
+        log.info("Start loading service configuration..");
+        //Load config from file "serviceconfig.xml" in resources
+        InputStream in = this.getClass().getClassLoader().getResourceAsStream("serviceconfig.xml");
+        if (in == null) {
+            log.info("No serviceconfig.xml found, using defaults");
+            return;
+        }
+        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+        try {
+            DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+            Document doc = docBuilder.parse(in);
+            doc.getDocumentElement().normalize();
+
+            this.policyCacheMaxWeight = getLong(doc, "policyCacheMaxWeight", this.policyCacheMaxWeight);
+            this.policyCacheTtl = getLong(doc, "policyCacheTtl", this.policyCacheTtl);
+            this.basePolicyCache = getBoolean(doc, "basePolicyCache", this.basePolicyCache);
+            this.decisionCacheMaxWeight = getLong(doc, "decisionCacheMaxWeight", this.decisionCacheMaxWeight);
+            this.decisionCacheTtl = getLong(doc, "decisionCacheTtl", this.decisionCacheTtl);
+            this.watchPolicyChanges = getBoolean(doc, "watchPolicyChanges", this.watchPolicyChanges);
+            this.multipleDecisionParallelism = (int) getLong(doc, "multipleDecisionParallelism", this.multipleDecisionParallelism);
+            this.maxMultipleDecisions = (int) getLong(doc, "maxMultipleDecisions", this.maxMultipleDecisions);
+            this.patientAccessListBatchSize = (int) getLong(doc, "patientAccessListBatchSize", this.patientAccessListBatchSize);
+            this.ensureIndexes = getBoolean(doc, "ensureIndexes", this.ensureIndexes);
+            this.failOnCollectionScan = getBoolean(doc, "failOnCollectionScan", this.failOnCollectionScan);
+            this.warmUp = getBoolean(doc, "warmUp", this.warmUp);
+            this.warmUpRecentPatients = (int) getLong(doc, "warmUpRecentPatients", this.warmUpRecentPatients);
+            String recentPatientsFile = getText(doc, "warmUpRecentPatientsFile");
+            if (recentPatientsFile != null && !recentPatientsFile.isEmpty()) {
+                this.warmUpRecentPatientsFile = recentPatientsFile;
+            }
+            this.warmUpParallelism = (int) getLong(doc, "warmUpParallelism", this.warmUpParallelism);
+            this.combineParallelism = (int) getLong(doc, "combineParallelism", this.combineParallelism);
+            this.combineParallelThreshold = (int) getLong(doc, "combineParallelThreshold", this.combineParallelThreshold);
+            this.referenceCacheMaxWeight = getLong(doc, "referenceCacheMaxWeight", this.referenceCacheMaxWeight);
+            this.referenceCacheTtl = getLong(doc, "referenceCacheTtl", this.referenceCacheTtl);
+            this.referenceNegativeCacheTtl = getLong(doc, "referenceNegativeCacheTtl", this.referenceNegativeCacheTtl);
+            this.serverMaxThreads = (int) getLong(doc, "serverMaxThreads", this.serverMaxThreads);
+            this.serverMinThreads = (int) getLong(doc, "serverMinThreads", this.serverMinThreads);
+            this.serverIdleTimeout = (int) getLong(doc, "serverIdleTimeout", this.serverIdleTimeout);
+            this.maxInFlightRequests = (int) getLong(doc, "maxInFlightRequests", this.maxInFlightRequests);
+            this.maxQueuedRequests = (int) getLong(doc, "maxQueuedRequests", this.maxQueuedRequests);
+            this.maxQueueWait = getLong(doc, "maxQueueWait", this.maxQueueWait);
+            this.retryAfter = (int) getLong(doc, "retryAfter", this.retryAfter);
+        }
+        catch (IOException | ParserConfigurationException | SAXException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private String getText(Document doc, String tagName) {
+        NodeList nodes = doc.getElementsByTagName(tagName);
+        if (nodes.getLength() == 0) {
+            return null;
+        }
+        return nodes.item(0).getTextContent().trim();
+    }
+
+    private long getLong(Document doc, String tagName, long defaultValue) {
+        String value = getText(doc, tagName);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+
+    private boolean getBoolean(Document doc, String tagName, boolean defaultValue) {
+        String value = getText(doc, tagName);
+        return value == null || value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
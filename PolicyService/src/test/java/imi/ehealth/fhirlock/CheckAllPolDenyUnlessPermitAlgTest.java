@@ -0,0 +1,79 @@
+package imi.ehealth.fhirlock;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.wso2.balana.AbstractPolicy;
+import org.wso2.balana.Balana;
+import org.wso2.balana.Policy;
+import org.wso2.balana.combine.PolicyCombinerElement;
+import org.wso2.balana.ctx.AbstractResult;
+import org.wso2.balana.ctx.EvaluationCtx;
+import org.wso2.balana.ctx.EvaluationCtxFactory;
+import org.wso2.balana.ctx.RequestCtxFactory;
+import org.wso2.balana.ctx.ResponseCtx;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The parallel combination of the base policies must return the result of the sequential one,
+ * with the advices (the allowed patient ids) in the same order
+ */
+public class CheckAllPolDenyUnlessPermitAlgTest {
+
+    private static final int PATIENTS = 300;
+    private static final int USERS = 10;
+
+    @Test
+    public void parallelCombineMatchesSequentialCombine() throws Exception {
+        List<PolicyCombinerElement> policyElements = compileBasePolicies(new InMemoryPolicyStore(PATIENTS, USERS));
+        CheckAllPolDenyUnlessPermitAlg sequential = new CheckAllPolDenyUnlessPermitAlg();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            //leaf size 1 down to the threshold: as many tasks as possible
+            CheckAllPolDenyUnlessPermitAlg parallel = new CheckAllPolDenyUnlessPermitAlg(pool, 1);
+            for (String user : new String[]{"doc0", "doc3", "doc9", "nobody"}) {
+                AbstractResult expected = sequential.combine(createContext(user), Collections.emptyList(), policyElements);
+                for (int run = 0; run < 5; run++) {
+                    AbstractResult actual = parallel.combine(createContext(user), Collections.emptyList(), policyElements);
+                    assertEquals(user, expected.getDecision(), actual.getDecision());
+                    assertEquals(user, new ResponseCtx(expected).encode(), new ResponseCtx(actual).encode());
+                }
+            }
+            AbstractResult permit = sequential.combine(createContext("doc3"), Collections.emptyList(), policyElements);
+            assertEquals(AbstractResult.DECISION_PERMIT, permit.getDecision());
+            //doc3 is on the access list of 3 of every 10 patients
+            assertEquals(PATIENTS * 3 / USERS, permit.getAdvices().size());
+            assertEquals(AbstractResult.DECISION_DENY,
+                    sequential.combine(createContext("nobody"), Collections.emptyList(), policyElements).getDecision());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<PolicyCombinerElement> compileBasePolicies(PolicyStore store) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        List<PolicyCombinerElement> policyElements = new ArrayList<>();
+        for (String policyXml : store.loadPoliciesByType("base")) {
+            Document doc = factory.newDocumentBuilder().parse(new InputSource(new StringReader(policyXml)));
+            AbstractPolicy policy = Policy.getInstance(doc.getDocumentElement());
+            policyElements.add(new PolicyCombinerElement(policy));
+        }
+        assertEquals(PATIENTS, policyElements.size());
+        return policyElements;
+    }
+
+    private static EvaluationCtx createContext(String user) throws Exception {
+        return EvaluationCtxFactory.getFactory().getEvaluationCtx(
+                RequestCtxFactory.getFactory().getRequestCtx(InMemoryPolicyStore.createAllPatientsRequest(user)),
+                Balana.getInstance().getPdpConfig());
+    }
+}
@@ -0,0 +1,88 @@
+package imi.ehealth.fhirlock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Evaluates the same requests sequentially and from many threads at once:
+ * the shared evaluator must return the sequential response for every request
+ */
+public class ConcurrentEvaluationTest {
+
+    private static final int PATIENTS = 40;
+    private static final int USERS = 10;
+    private static final int THREADS = 16;
+    private static final int REPETITIONS = 4;
+
+    @Test
+    public void parallelEvaluationsMatchSequentialOnes() throws Exception {
+        InMemoryPolicyStore store = new InMemoryPolicyStore(PATIENTS, USERS);
+        List<String> requests = createRequests();
+
+        //expected: one request after the other, without decision cache
+        PolicyEvaluator sequentialEvaluator = new PolicyEvaluator(store, new DecisionCache(0, 0));
+        List<String> expected = new ArrayList<>(requests.size());
+        for (String request : requests) {
+            expected.add(sequentialEvaluator.evaluate(request));
+        }
+        assertTrue("no permits", expected.stream().anyMatch(response -> response.contains("<Decision>Permit</Decision>")));
+        assertTrue("no denies", expected.stream().anyMatch(response -> response.contains("<Decision>Deny</Decision>")));
+
+        //every request several times in random order, on a fresh evaluator with decision cache
+        PolicyEvaluator evaluator = new PolicyEvaluator(store, new DecisionCache(8000000, 60));
+        List<Integer> order = new ArrayList<>();
+        for (int repetition = 0; repetition < REPETITIONS; repetition++) {
+            for (int i = 0; i < requests.size(); i++) {
+                order.add(i);
+            }
+        }
+        Collections.shuffle(order, new Random(42));
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<String>> tasks = new ArrayList<>(order.size());
+            for (int index : order) {
+                tasks.add(() -> evaluator.evaluate(requests.get(index)));
+            }
+            List<Future<String>> responses = executor.invokeAll(tasks);
+            for (int i = 0; i < order.size(); i++) {
+                int index = order.get(i);
+                assertEquals("request " + index, expected.get(index), responses.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * requests of every user for resources of every patient (allowed ones, denied by the access list,
+     * denied by a resource type or resource policy) and the all-patients request of every user
+     */
+    private static List<String> createRequests() {
+        List<String> requests = new ArrayList<>();
+        for (int patient = 1; patient <= PATIENTS; patient++) {
+            String patientId = String.valueOf(patient);
+            for (int user = 0; user < USERS; user++) {
+                String userId = "doc" + user;
+                requests.add(InMemoryPolicyStore.createResourceRequest(userId, patientId, "Condition", "8"));
+                requests.add(InMemoryPolicyStore.createResourceRequest(userId, patientId, "Condition", InMemoryPolicyStore.CONDITION_ID));
+                requests.add(InMemoryPolicyStore.createResourceRequest(userId, patientId, InMemoryPolicyStore.OBSERVATION_DENIED, patientId));
+            }
+        }
+        for (int user = 0; user < USERS; user++) {
+            requests.add(InMemoryPolicyStore.createAllPatientsRequest("doc" + user));
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,189 @@
+package imi.ehealth.fhirlock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Policy store for the tests, with the structure of the mongo sample data
+ * Every patient "1".."n" has a policy set referencing its base policy (access list of some users),
+ * an observation policy and a policy for condition "7", each denying one user of the access list
+ */
+class InMemoryPolicyStore implements PolicyStore {
+
+    static final String OBSERVATION_DENIED = "Observation";
+    static final String CONDITION_ID = "7";
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+    private static final String PATIENT_ID = "urn:oasis:names:tc:xacml:1.0:resource:patient-id";
+    private static final String RESOURCE_CATEGORY = "urn:oasis:names:tc:xacml:3.0:attribute-category:resource";
+    private static final String SUBJECT_CATEGORY = "urn:oasis:names:tc:xacml:1.0:subject-category:access-subject";
+    private static final String ACTION_CATEGORY = "urn:oasis:names:tc:xacml:3.0:attribute-category:action";
+
+    private final int users;
+    private final Map<String, String> policySets = new HashMap<>();
+    private final Map<String, String> policiesByName = new HashMap<>();
+    private final List<String> basePolicies = new ArrayList<>();
+
+    /**
+     * create the policies
+     * @param patients number of patients
+     * @param users number of users ("doc0".."doc<users-1>"); every patient has three of them on its access list
+     */
+    InMemoryPolicyStore(int patients, int users) {
+        this.users = users;
+        for (int patient = 1; patient <= patients; patient++) {
+            String prefix = "urn:patient:" + patient + ":policies:";
+            policySets.put(String.valueOf(patient), createPolicySet(patient, prefix));
+            String basePolicy = createBasePolicy(patient, prefix);
+            basePolicies.add(basePolicy);
+            policiesByName.put(prefix + "base", basePolicy);
+            policiesByName.put(prefix + "observation", createDenyPolicy(patient, prefix + "observation",
+                    OBSERVATION_DENIED, null, getUser(patient, 0)));
+            policiesByName.put(prefix + "condition:" + CONDITION_ID, createDenyPolicy(patient, prefix + "condition:" + CONDITION_ID,
+                    "Condition", CONDITION_ID, getUser(patient, 1)));
+        }
+    }
+
+    /**
+     * get a user of the access list of a patient
+     * @param patient the patient number
+     * @param index index on the access list (0..2)
+     * @return the user name
+     */
+    String getUser(int patient, int index) {
+        return "doc" + ((patient + index) % users);
+    }
+
+    @Override
+    public List<String> loadPolicySetsByTarget(String target) {
+        String policySet = policySets.get(target);
+        return policySet == null ? Collections.emptyList() : Collections.singletonList(policySet);
+    }
+
+    @Override
+    public List<String> loadPoliciesByType(String type) {
+        return "base".equals(type) ? basePolicies : Collections.emptyList();
+    }
+
+    @Override
+    public List<String> loadPoliciesByName(String name) {
+        String policy = policiesByName.get(name);
+        return policy == null ? Collections.emptyList() : Collections.singletonList(policy);
+    }
+
+    @Override
+    public Map<String, List<String>> loadPoliciesByNames(Collection<String> names) {
+        Map<String, List<String>> policies = new HashMap<>();
+        for (String name : names) {
+            List<String> policy = loadPoliciesByName(name);
+            if (!policy.isEmpty()) {
+                policies.put(name, policy);
+            }
+        }
+        return policies;
+    }
+
+    private String createPolicySet(int patient, String prefix) {
+        return "<PolicySet xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicySetId=\"Patient" + patient
+                + "\" Version=\"1.0\" PolicyCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:policy-combining-algorithm:permit-unless-deny\">"
+                + "<Target><AnyOf><AllOf>" + match(String.valueOf(patient), PATIENT_ID, RESOURCE_CATEGORY) + "</AllOf></AnyOf></Target>"
+                + "<PolicyIdReference>" + prefix + "base</PolicyIdReference>"
+                + "<PolicyIdReference>" + prefix + "observation</PolicyIdReference>"
+                + "<PolicyIdReference>" + prefix + "condition:" + CONDITION_ID + "</PolicyIdReference>"
+                + "</PolicySet>";
+    }
+
+    private String createBasePolicy(int patient, String prefix) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"").append(prefix)
+                .append("base\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:permit-unless-deny\" Version=\"1.0\">")
+                .append("<Target><AnyOf><AllOf>").append(match(String.valueOf(patient), PATIENT_ID, RESOURCE_CATEGORY)).append("</AllOf></AnyOf></Target>")
+                //deny unless the user is on the access list
+                .append("<Rule Effect=\"Deny\" RuleId=\"Read_all_data\"><Target><AnyOf><AllOf>")
+                .append(match("GET", "urn:oasis:names:tc:xacml:1.0:action:action-id", ACTION_CATEGORY))
+                .append("</AllOf></AnyOf></Target>")
+                .append("<Condition><Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:not\">")
+                .append("<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-at-least-one-member-of\">")
+                .append("<Apply FunctionId=\"urn:oasis:names:tc:xacml:1.0:function:string-bag\">");
+        for (int i = 0; i < 3; i++) {
+            xml.append("<AttributeValue DataType=\"").append(STRING).append("\">").append(getUser(patient, i)).append("</AttributeValue>");
+        }
+        xml.append("</Apply>")
+                .append("<AttributeDesignator AttributeId=\"urn:oasis:names:tc:xacml:1.0:subject:subject-id\" Category=\"")
+                .append(SUBJECT_CATEGORY).append("\" DataType=\"").append(STRING).append("\" MustBePresent=\"true\"/>")
+                .append("</Apply></Apply></Condition></Rule>")
+                //the patient id for the all-patients request
+                .append("<AdviceExpressions><AdviceExpression AdviceId=\"urn:ruleInformation\" AppliesTo=\"Permit\">")
+                .append("<AttributeAssignmentExpression AttributeId=\"urn:ruleInformation:resourceid\">")
+                .append("<AttributeValue DataType=\"").append(STRING).append("\">").append(patient).append("</AttributeValue>")
+                .append("</AttributeAssignmentExpression></AdviceExpression></AdviceExpressions>")
+                .append("</Policy>");
+        return xml.toString();
+    }
+
+    private String createDenyPolicy(int patient, String name, String resourceType, String resourceId, String user) {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<Policy xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" PolicyId=\"").append(name)
+                .append("\" RuleCombiningAlgId=\"urn:oasis:names:tc:xacml:3.0:rule-combining-algorithm:permit-unless-deny\" Version=\"1.0\">")
+                .append("<Target><AnyOf><AllOf>").append(match(String.valueOf(patient), PATIENT_ID, RESOURCE_CATEGORY))
+                .append("</AllOf></AnyOf><AnyOf><AllOf>")
+                .append(match(resourceType, "urn:oasis:names:tc:xacml:1.0:resource:resource-type", RESOURCE_CATEGORY))
+                .append("</AllOf></AnyOf>");
+        if (resourceId != null) {
+            xml.append("<AnyOf><AllOf>").append(match(resourceId, "urn:oasis:names:tc:xacml:1.0:resource:resource-id", RESOURCE_CATEGORY))
+                    .append("</AllOf></AnyOf>");
+        }
+        xml.append("</Target><Rule Effect=\"Deny\" RuleId=\"Read_not\"><Target><AnyOf><AllOf>")
+                .append(match(user, "urn:oasis:names:tc:xacml:1.0:subject:subject-id", SUBJECT_CATEGORY))
+                .append("</AllOf></AnyOf></Target></Rule></Policy>");
+        return xml.toString();
+    }
+
+    private static String match(String value, String attributeId, String category) {
+        return "<Match MatchId=\"urn:oasis:names:tc:xacml:1.0:function:string-equal\">"
+                + "<AttributeValue DataType=\"" + STRING + "\">" + value + "</AttributeValue>"
+                + "<AttributeDesignator AttributeId=\"" + attributeId + "\" Category=\"" + category
+                + "\" DataType=\"" + STRING + "\" MustBePresent=\"true\"/></Match>";
+    }
+
+    /**
+     * request for a single resource of a patient
+     */
+    static String createResourceRequest(String user, String patientId, String resourceType, String resourceId) {
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">"
+                + action() + subject(user)
+                + "<Attributes Category=\"" + RESOURCE_CATEGORY + "\">"
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-type", resourceType)
+                + attribute(PATIENT_ID, patientId)
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-id", resourceId)
+                + "</Attributes></Request>";
+    }
+
+    /**
+     * request for all patients a user is allowed to see (no resource id)
+     */
+    static String createAllPatientsRequest(String user) {
+        return "<Request xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\" CombinedDecision=\"false\" ReturnPolicyIdList=\"false\">"
+                + action() + subject(user)
+                + "<Attributes Category=\"" + RESOURCE_CATEGORY + "\">"
+                + attribute("urn:oasis:names:tc:xacml:1.0:resource:resource-type", "Patient")
+                + "</Attributes></Request>";
+    }
+
+    private static String action() {
+        return "<Attributes Category=\"" + ACTION_CATEGORY + "\">" + attribute("urn:oasis:names:tc:xacml:1.0:action:action-id", "GET") + "</Attributes>";
+    }
+
+    private static String subject(String user) {
+        return "<Attributes Category=\"" + SUBJECT_CATEGORY + "\">" + attribute("urn:oasis:names:tc:xacml:1.0:subject:subject-id", user) + "</Attributes>";
+    }
+
+    private static String attribute(String attributeId, String value) {
+        return "<Attribute AttributeId=\"" + attributeId + "\" IncludeInResult=\"false\">"
+                + "<AttributeValue DataType=\"" + STRING + "\">" + value + "</AttributeValue></Attribute>";
+    }
+}
@@ -0,0 +1,58 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+import imi.ehealth.fhirlock.policy.RequestCreator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation of the xacml request for a single resource, as done by the interceptor for every resource of a response
+ * Run with "-prof gc" for the allocation rate
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RequestCreatorBenchmark {
+
+    private static final int RESOURCES = 1024;
+    private static final String[] RESOURCE_TYPES = {"Observation", "Condition", "Procedure", "Encounter"};
+
+    private String[][] resources;
+
+    @Setup
+    public void setUp() {
+        //fixed seed: the same resources in every run
+        Random random = new Random(42);
+        resources = new String[RESOURCES][];
+        for (int i = 0; i < RESOURCES; i++) {
+            resources[i] = new String[]{"doc" + random.nextInt(100), RESOURCE_TYPES[random.nextInt(RESOURCE_TYPES.length)],
+                    String.valueOf(10000 + random.nextInt(90000)), String.valueOf(1 + random.nextInt(10000))};
+        }
+    }
+
+    @Benchmark
+    public String createRequest() {
+        String[] resource = resources[ThreadLocalRandom.current().nextInt(RESOURCES)];
+        RequestCreator rc = new RequestCreator();
+        rc.setAction("GET");
+        rc.setUser(resource[0]);
+        rc.setResourceType(resource[1]);
+        rc.setResourceId(resource[2]);
+        rc.setPatientId(resource[3]);
+        return rc.createRequest();
+    }
+}
@@ -0,0 +1,80 @@
+package imi.ehealth.fhirlock.benchmarks;
+
+import imi.ehealth.fhirlock.policy.EvaluationResult;
+import imi.ehealth.fhirlock.policy.PolicyEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of xacml responses of the pdp (DOM and ResponseCtx) into an {@link EvaluationResult}
+ * A permit with n "urn:ruleInformation:resourceid" advices is the response of the all-patients request;
+ * single resource checks get responses without advices. Run with "-prof gc" for the allocation rate
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ResponseParsingBenchmark {
+
+    private static final String STRING = "http://www.w3.org/2001/XMLSchema#string";
+
+    private final PolicyEvaluator evaluator = new PolicyEvaluator();
+    private final String denyResponse = createResponse("Deny", "");
+
+    /**
+     * permit response with advices
+     */
+    @State(Scope.Benchmark)
+    public static class PermitResponse {
+        @Param({"0", "10", "1000", "10000"})
+        public int adviceIds;
+
+        private String xml;
+
+        @Setup
+        public void setUp() {
+            StringBuilder advices = new StringBuilder();
+            if (adviceIds > 0) {
+                advices.append("<AssociatedAdvice>");
+                for (int i = 1; i <= adviceIds; i++) {
+                    advices.append("<Advice AdviceId=\"urn:ruleInformation\">")
+                            .append("<AttributeAssignment AttributeId=\"urn:ruleInformation:resourceid\" DataType=\"").append(STRING).append("\">")
+                            .append(i).append("</AttributeAssignment></Advice>");
+                }
+                advices.append("</AssociatedAdvice>");
+            }
+            xml = createResponse("Permit", advices.toString());
+        }
+    }
+
+    @Benchmark
+    public EvaluationResult parsePermit(PermitResponse response) {
+        return evaluator.parseResponse(response.xml);
+    }
+
+    @Benchmark
+    public EvaluationResult parseDeny() {
+        return evaluator.parseResponse(denyResponse);
+    }
+
+    private static String createResponse(String decision, String advices) {
+        return "<Response xmlns=\"urn:oasis:names:tc:xacml:3.0:core:schema:wd-17\"><Result>"
+                + "<Decision>" + decision + "</Decision>"
+                + "<Status><StatusCode Value=\"urn:oasis:names:tc:xacml:1.0:status:ok\"/></Status>"
+                + advices
+                + "</Result></Response>";
+    }
+}
@@ -0,0 +1,57 @@
+package imi.ehealth.fhirlock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Restricts the admin endpoints (metrics, access table) to local requests and the configured addresses (see web.xml)
+ * These endpoints aren't part of the fhir server, so the authentication of the interceptor doesn't apply to them
+ */
+public class AdminAccessFilter implements Filter {
+    private static final Logger myLog = LoggerFactory.getLogger(AdminAccessFilter.class);
+
+    private static final String ALLOWED_ADDRESSES_PARAM = "allowedAddresses";
+
+    private final Set<String> allowedAddresses = new HashSet<>(Arrays.asList("127.0.0.1", "::1", "0:0:0:0:0:0:0:1"));
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        //comma separated, e.g. the address of the prometheus server
+        String addresses = filterConfig.getInitParameter(ALLOWED_ADDRESSES_PARAM);
+        if (addresses != null) {
+            for (String address : addresses.split(",")) {
+                if (!address.trim().isEmpty()) {
+                    allowedAddresses.add(address.trim());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        //the address of the connection, forwarded-for headers can be set by anyone
+        String remoteAddress = request.getRemoteAddr();
+        if (!allowedAddresses.contains(remoteAddress)) {
+            myLog.warn("Denied access to admin endpoint from " + remoteAddress);
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        chain.doFilter(request, response);
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -1,10 +1,19 @@
 package imi.ehealth.fhirlock;
 
 import ca.uhn.fhir.context.FhirContext;
+import imi.ehealth.fhirlock.access.PatientAccessTable;
+import imi.ehealth.fhirlock.access.PatientAccessTableSync;
+import imi.ehealth.fhirlock.metrics.AuthorizationMetrics;
+import imi.ehealth.fhirlock.metrics.AuthorizationTiming;
+import imi.ehealth.fhirlock.policy.EmbeddedPolicyDecisionPoint;
+import imi.ehealth.fhirlock.policy.AccessListCache;
 import imi.ehealth.fhirlock.policy.EvaluationResult;
 import imi.ehealth.fhirlock.policy.EvaluationResultType;
-import imi.ehealth.fhirlock.policy.PolicyEvaluator;
+import imi.ehealth.fhirlock.policy.PdpHttpClients;
+import imi.ehealth.fhirlock.policy.PolicyDecisionPoint;
+import imi.ehealth.fhirlock.policy.RemotePolicyDecisionPoint;
 import imi.ehealth.fhirlock.policy.RequestCreator;
+import imi.ehealth.fhirlock.policy.ResourceDecisionCache;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
@@ -32,10 +41,20 @@ import org.springframework.web.context.WebApplicationContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** CustomAuthorizationInterceptor
  * for GET requests
@@ -77,6 +96,231 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
         this.policyServerUrl = policyServerUrl;
     }
 
+    private boolean embeddedPdp = false;
+
+    public boolean isEmbeddedPdp() {
+        return embeddedPdp;
+    }
+
+    /**
+     * evaluate in-process instead of sending the requests to the policy service (policyServerUrl is not used then)
+     * @param embeddedPdp true, to embed the pdp
+     */
+    public void setEmbeddedPdp(boolean embeddedPdp) {
+        this.embeddedPdp = embeddedPdp;
+    }
+
+    //settings of the pooled http client for the policy service
+    private int pdpMaxConnections = PdpHttpClients.DEFAULT_MAX_CONNECTIONS;
+    private int pdpMaxConnectionsPerRoute = PdpHttpClients.DEFAULT_MAX_CONNECTIONS;
+    private int pdpConnectTimeout = PdpHttpClients.DEFAULT_CONNECT_TIMEOUT;
+    private int pdpSocketTimeout = PdpHttpClients.DEFAULT_SOCKET_TIMEOUT;
+    private boolean pdpGzip = false;
+
+    public int getPdpMaxConnections() {
+        return pdpMaxConnections;
+    }
+
+    /**
+     * @param pdpMaxConnections max open connections to the policy service in total
+     */
+    public void setPdpMaxConnections(int pdpMaxConnections) {
+        this.pdpMaxConnections = pdpMaxConnections;
+    }
+
+    public int getPdpMaxConnectionsPerRoute() {
+        return pdpMaxConnectionsPerRoute;
+    }
+
+    /**
+     * @param pdpMaxConnectionsPerRoute max open connections to one host of the policy service
+     */
+    public void setPdpMaxConnectionsPerRoute(int pdpMaxConnectionsPerRoute) {
+        this.pdpMaxConnectionsPerRoute = pdpMaxConnectionsPerRoute;
+    }
+
+    public int getPdpConnectTimeout() {
+        return pdpConnectTimeout;
+    }
+
+    /**
+     * @param pdpConnectTimeout timeout in ms for connecting (or getting a pooled connection)
+     */
+    public void setPdpConnectTimeout(int pdpConnectTimeout) {
+        this.pdpConnectTimeout = pdpConnectTimeout;
+    }
+
+    public int getPdpSocketTimeout() {
+        return pdpSocketTimeout;
+    }
+
+    /**
+     * @param pdpSocketTimeout timeout in ms for reading the response
+     */
+    public void setPdpSocketTimeout(int pdpSocketTimeout) {
+        this.pdpSocketTimeout = pdpSocketTimeout;
+    }
+
+    public boolean isPdpGzip() {
+        return pdpGzip;
+    }
+
+    /**
+     * @param pdpGzip true, to gzip the requests to the policy service and accept gzipped responses
+     */
+    public void setPdpGzip(boolean pdpGzip) {
+        this.pdpGzip = pdpGzip;
+    }
+
+    //max resources per multiple decision request (the policy service accepts up to maxMultipleDecisions)
+    private int pdpBatchSize = 100;
+
+    public int getPdpBatchSize() {
+        return pdpBatchSize;
+    }
+
+    /**
+     * @param pdpBatchSize max resources of a search result checked with one request to the pdp
+     */
+    public void setPdpBatchSize(int pdpBatchSize) {
+        this.pdpBatchSize = Math.max(1, pdpBatchSize);
+    }
+
+    //batches of a search result checked at the same time (by all requests together)
+    private int pdpParallelism = 8;
+    //time in ms for checking all resources of a search result; unchecked resources are denied
+    private long pdpDeadline = 10000;
+
+    public int getPdpParallelism() {
+        return pdpParallelism;
+    }
+
+    /**
+     * @param pdpParallelism max concurrent requests to the pdp for checking search results
+     */
+    public void setPdpParallelism(int pdpParallelism) {
+        this.pdpParallelism = Math.max(1, pdpParallelism);
+    }
+
+    public long getPdpDeadline() {
+        return pdpDeadline;
+    }
+
+    /**
+     * @param pdpDeadline time in ms for checking the resources of a search result; resources without result then are denied
+     */
+    public void setPdpDeadline(long pdpDeadline) {
+        this.pdpDeadline = pdpDeadline;
+    }
+
+    //decisions for single resources cached in the server; 0 disables the cache
+    private int decisionCacheSize = 10000;
+    private long decisionCacheTtl = 60;
+
+    public int getDecisionCacheSize() {
+        return decisionCacheSize;
+    }
+
+    /**
+     * @param decisionCacheSize max cached decisions of the pdp, 0 to ask the pdp for every resource
+     */
+    public void setDecisionCacheSize(int decisionCacheSize) {
+        this.decisionCacheSize = decisionCacheSize;
+    }
+
+    public long getDecisionCacheTtl() {
+        return decisionCacheTtl;
+    }
+
+    /**
+     * @param decisionCacheTtl time to live of a cached decision in seconds (= max delay until changed policies take effect)
+     */
+    public void setDecisionCacheTtl(long decisionCacheTtl) {
+        this.decisionCacheTtl = decisionCacheTtl;
+    }
+
+    //access lists of the users cached in the server; 0 disables the cache
+    private int accessListCacheSize = 1000;
+    private long accessListCacheTtl = 3600;
+    private long accessListFallbackTtl = 30;
+
+    public int getAccessListCacheSize() {
+        return accessListCacheSize;
+    }
+
+    /**
+     * @param accessListCacheSize max users whose access list is cached, 0 to load the list for every search
+     */
+    public void setAccessListCacheSize(int accessListCacheSize) {
+        this.accessListCacheSize = accessListCacheSize;
+    }
+
+    public long getAccessListCacheTtl() {
+        return accessListCacheTtl;
+    }
+
+    /**
+     * @param accessListCacheTtl time to live of a cached access list in seconds, while changes are pushed by the pdp
+     */
+    public void setAccessListCacheTtl(long accessListCacheTtl) {
+        this.accessListCacheTtl = accessListCacheTtl;
+    }
+
+    public long getAccessListFallbackTtl() {
+        return accessListFallbackTtl;
+    }
+
+    /**
+     * @param accessListFallbackTtl time to live of a cached access list in seconds, while changes are not pushed (no connection)
+     */
+    public void setAccessListFallbackTtl(long accessListFallbackTtl) {
+        this.accessListFallbackTtl = accessListFallbackTtl;
+    }
+
+    //access lists copied into the database of the server
+    private boolean accessTable = false;
+    private DataSource accessTableDataSource;
+
+    public boolean isAccessTable() {
+        return accessTable;
+    }
+
+    /**
+     * read the access lists from a copy in the server database (kept in sync with the pdp), as long as it is up to date
+     * @param accessTable true, to use the table
+     */
+    public void setAccessTable(boolean accessTable) {
+        this.accessTable = accessTable;
+    }
+
+    /**
+     * @param accessTableDataSource the data source of the database with the access table
+     */
+    public void setAccessTableDataSource(DataSource accessTableDataSource) {
+        this.accessTableDataSource = accessTableDataSource;
+    }
+
+    //created on first use, after the configuration is complete
+    private volatile PolicyDecisionPoint policyDecisionPoint;
+    private volatile PatientAccessTableSync accessTableSync;
+    private volatile AccessListCache accessListCache;
+    private volatile ExecutorService pdpExecutor;
+    private volatile ResourceDecisionCache decisionCache;
+
+    private boolean serverTimingHeader = false;
+
+    public boolean isServerTimingHeader() {
+        return serverTimingHeader;
+    }
+
+    /**
+     * add a Server-Timing header with the authorization stages to the responses
+     * @param serverTimingHeader true, to add the header
+     */
+    public void setServerTimingHeader(boolean serverTimingHeader) {
+        this.serverTimingHeader = serverTimingHeader;
+    }
+
     private String currentUserId;
     private Boolean skipSingleCheck = false;
     private String originalUrl;
@@ -90,8 +334,15 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
 
     @Override
     public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) throws AuthenticationException {
+        AuthorizationTiming timing = AuthorizationTiming.of(theRequestDetails);
+
         //check authN first - might skip everything else
-        checkAuthentication(theRequestDetails);
+        long start = System.nanoTime();
+        try {
+            checkAuthentication(theRequestDetails);
+        } finally {
+            timing.addAuthenticationNanos(System.nanoTime() - start);
+        }
 
         //this method is called (once) BEFORE the search is actually performed
         skipSingleCheck = false;
@@ -110,7 +361,10 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
                     //should be a search..
 
                     //get ALL patients the user is allowed to see
-                    List<String> allowedIds = getAllowedPatientIds();
+                    start = System.nanoTime();
+                    Set<String> allowedIds = getAllowedPatientIds();
+                    timing.addAccessListNanos(System.nanoTime() - start);
+                    start = System.nanoTime();
 
                     String requestedResource = theRequestDetails.getResourceName();
                     if (requestedResource.equals("Patient")) {
@@ -127,16 +381,20 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
                     if (searchIds != null && searchIds.length > 0) {
                         //search with ids..
                         List<String> wantedIds = new ArrayList<>(Arrays.asList(searchIds[0].split(",")));
-                        //..remove those that are not allowed
-                        wantedIds.retainAll(allowedIds);
+                        //..remove those that are not allowed (set lookup, the access list might be long)
+                        wantedIds.removeIf(id -> !allowedIds.contains(id));
 
                         //..and save the left ones
                         theRequestDetails.addParameter(ReferenceDictionaries.PAT_REF_DICT.get(requestedResource), new String[]{String.join(",", wantedIds)});
 
                     } else {
                         //just add search parameter for patient refs
+                        //(always, however long the list: filtering after the search would break paging and totals)
+                        //the jpa layer turns it into an IN list: hapi 3.4 has no hook to join the allowed patients into the search sql,
+                        //only the intersection above is set based
                         theRequestDetails.addParameter(ReferenceDictionaries.PAT_REF_DICT.get(requestedResource), new String[]{String.join(",", allowedIds)});
                     }
+                    timing.addRewriteNanos(System.nanoTime() - start);
                 }
             }
         }
@@ -175,9 +433,12 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
     @Override
     public boolean outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
     {
+        AuthorizationTiming timing = AuthorizationTiming.of(theRequestDetails);
+
         switch (determineOperationDirection(theRequestDetails.getRestOperationType(), null)) {
             case IN:
             case NONE:
+                completeTiming(timing, theServletResponse);
                 return true;
             case BOTH:
             case OUT:
@@ -219,11 +480,12 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
                     Bundle bundle = (Bundle) theResponseObject;
 
                     if (!skipSingleCheck) {
-                        //check each resource and remove from bundle if not allowed
-                        for (IBaseResource nextResponse : resources) {
-                            if (checkResourceForbidden(theRequestDetails, nextResponse)) {
-                                bundle.getEntry().removeIf(x -> x.getResource().getIdElement().getIdPart().equals(nextResponse.getIdElement().getIdPart()));
-                            }
+                        //check all resources with batched requests and remove the forbidden ones from the bundle in one pass
+                        timing.addResourcesChecked(resources.size());
+                        Set<String> forbiddenIds = getForbiddenResourceIds(theRequestDetails, resources);
+                        if (!forbiddenIds.isEmpty()) {
+                            bundle.getEntry().removeIf(x -> x.getResource() != null && forbiddenIds.contains(x.getResource().getIdElement().getIdPart()));
+                            timing.addResourcesFiltered(forbiddenIds.size());
                         }
 
                         bundle.setTotal(bundle.getEntry().size());
@@ -234,14 +496,17 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
                     theResponseDetails.setResponseResource(theResponseObject);
                 } else { //single resource
                     if (!skipSingleCheck) {
+                        timing.addResourcesChecked(1);
                         if (checkResourceForbidden(theRequestDetails, resources.get(0))) {
                             //there was a deny for that resource..
+                            timing.addResourcesFiltered(1);
                             throw new ForbiddenOperationException("Access denied - not enought rights for this resource");
                         }
                     }
                 }
         } //TODO for DEBUG only
 
+        completeTiming(timing, theServletResponse);
         return true;
     }
 
@@ -251,6 +516,8 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
     public BaseServerResponseException preProcessOutgoingException(RequestDetails theRequestDetails, Throwable theException, HttpServletRequest theServletRequest) throws ServletException {
         //on exception reset local request parameters like userid
         resetCurrentParameters();
+        //the response is not available anymore -> metrics only, no header
+        AuthorizationTiming.of(theRequestDetails).record();
         return super.preProcessOutgoingException(theRequestDetails, theException, theServletRequest);
     }
 
@@ -286,21 +553,140 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
 
     /**
      * Create a request to get a list of all patients the user is basically allowed to see
-     * @return the list of patient resource ids
+     * @return the set of patient resource ids
      */
-    private List<String> getAllowedPatientIds(){
+    private Set<String> getAllowedPatientIds(){
+        String userId = currentUserId;
+        //the table only replaces the call of the pdp, the search is restricted with the ids like before
+        PatientAccessTableSync sync = getAccessTableSync();
+        if (sync != null && sync.isUsable()) {
+            try {
+                return sync.getTable().getPatientIds(userId);
+            } catch (SQLException e) {
+                myLog.warn("Access table can't be read, asking the pdp: " + e.getMessage());
+            }
+        }
+        AccessListCache cache = getAccessListCache();
+        if (cache == null) {
+            return new LinkedHashSet<>(getPolicyDecisionPoint().getPatientAccessList(userId));
+        }
+        Set<String> allowedIds = cache.get(userId);
+        if (allowedIds == null) {
+            long generation = cache.getGeneration();
+            allowedIds = new LinkedHashSet<>(getPolicyDecisionPoint().getPatientAccessList(userId));
+            //an empty list might also be the result of an error, so it isn't cached
+            if (!allowedIds.isEmpty()) {
+                cache.put(userId, allowedIds, generation);
+            }
+        }
+        return allowedIds;
+    }
 
-        PolicyEvaluator pe = new PolicyEvaluator();
+    /**
+     * get the sync of the access table, started on first use
+     * @return the sync or null, if the table isn't used
+     */
+    private PatientAccessTableSync getAccessTableSync() {
+        if (!accessTable || accessTableDataSource == null) {
+            return null;
+        }
+        if (accessTableSync == null) {
+            synchronized (this) {
+                if (accessTableSync == null) {
+                    PatientAccessTableSync sync = new PatientAccessTableSync(new PatientAccessTable(accessTableDataSource), getPolicyDecisionPoint());
+                    sync.start();
+                    accessTableSync = sync;
+                }
+            }
+        }
+        return accessTableSync;
+    }
 
-        String result = pe.evaluateRequest(currentUserId,policyServerUrl + "/patientAccessList");
+    /**
+     * get the access list cache, evicted by the changes pushed by the pdp
+     * @return the cache or null, if disabled
+     */
+    private AccessListCache getAccessListCache() {
+        if (accessListCacheSize <= 0) {
+            return null;
+        }
+        if (accessListCache == null) {
+            synchronized (this) {
+                if (accessListCache == null) {
+                    PolicyDecisionPoint pdp = getPolicyDecisionPoint();
+                    AccessListCache cache = new AccessListCache(accessListCacheSize, accessListCacheTtl, accessListFallbackTtl,
+                            pdp::isAccessListPushActive);
+                    pdp.addAccessListListener(cache);
+                    AuthorizationMetrics.setAccessListCache(cache);
+                    accessListCache = cache;
+                }
+            }
+        }
+        return accessListCache;
+    }
 
-        if (result != null && result.length() > 0) {
-            return new ArrayList<>(Arrays.asList(result.split(";")));
+    /**
+     * get the configured policy decision point, embedded or the policy service
+     * @return the pdp
+     */
+    private PolicyDecisionPoint getPolicyDecisionPoint() {
+        if (policyDecisionPoint == null) {
+            synchronized (this) {
+                if (policyDecisionPoint == null) {
+                    if (embeddedPdp) {
+                        policyDecisionPoint = new EmbeddedPolicyDecisionPoint();
+                    } else {
+                        policyDecisionPoint = new RemotePolicyDecisionPoint(policyServerUrl,
+                                PdpHttpClients.create(pdpMaxConnections, pdpMaxConnectionsPerRoute, pdpConnectTimeout, pdpSocketTimeout, pdpGzip),
+                                pdpGzip);
+                    }
+                }
+            }
+        }
+        return policyDecisionPoint;
+    }
+
+    /**
+     * get the decision cache
+     * @return the cache or null, if disabled
+     */
+    private ResourceDecisionCache getDecisionCache() {
+        if (decisionCacheSize <= 0) {
+            return null;
         }
-        else {
-            //else return empty list
-            return new ArrayList<>();
+        if (decisionCache == null) {
+            synchronized (this) {
+                if (decisionCache == null) {
+                    ResourceDecisionCache cache = new ResourceDecisionCache(decisionCacheSize, decisionCacheTtl, TimeUnit.SECONDS);
+                    //decisions of patients with changed access list are dropped at once
+                    getPolicyDecisionPoint().addAccessListListener(cache);
+                    AuthorizationMetrics.setDecisionCache(cache);
+                    decisionCache = cache;
+                }
+            }
         }
+        return decisionCache;
+    }
+
+    /**
+     * get the executor for checking search results in parallel, with pdpParallelism threads
+     * @return the executor
+     */
+    private ExecutorService getPdpExecutor() {
+        if (pdpExecutor == null) {
+            synchronized (this) {
+                if (pdpExecutor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    ThreadFactory threadFactory = runnable -> {
+                        Thread thread = new Thread(runnable, "pdp-check-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    };
+                    pdpExecutor = Executors.newFixedThreadPool(pdpParallelism, threadFactory);
+                }
+            }
+        }
+        return pdpExecutor;
     }
 
     private OperationExamineDirection determineOperationDirection(RestOperationTypeEnum theOperation, IBaseResource theRequestResource) {
@@ -377,45 +763,46 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
         RequestTypeEnum action = theRequestDetails.getRequestType();  //GET or POST
 
         if (resource != null) {
-            String resourceName = resource.getClass().getSimpleName();
-            String fullResourceName = resource.getClass().getName();
+            String userId = currentUserId;
+            String resourceType = resource.getClass().getSimpleName();
             String resourceId = resource.getIdElement().getIdPart();
-            String patientId;
-
-            if (!resourceName.equals("Patient")) {
-                //get matching Patient ID
-                try {
-                    Class c = Class.forName(fullResourceName);
-
-                    Method getSubject = c.getMethod(ReferenceDictionaries.PAT_REF_METH_DICT.get(resourceName));
-                    Reference ref = (Reference) getSubject.invoke(resource);
-
-                    patientId = ref.getReference().split("/")[1];
-
-                } catch (ClassNotFoundException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-                    e.printStackTrace();
-                    throw new ResourceNotFoundException("Requested resource doesn't exist");
+            String patientId = getPatientId(resource);
+
+            //decided before?
+            ResourceDecisionCache cache = getDecisionCache();
+            if (cache != null) {
+                Boolean forbidden = cache.getForbidden(userId, action.toString(), resourceType, resourceId, patientId);
+                if (forbidden != null) {
+                    return forbidden;
                 }
-            } else {
-                patientId = resourceId;
             }
 
             //create xacml request..
             RequestCreator rc = new RequestCreator();
             rc.setAction(action.toString()); //TODO only GET atm
-            rc.setResourceType(resourceName);
+            rc.setResourceType(resourceType);
             rc.setResourceId(resourceId);
-            rc.setUser(currentUserId);
+            rc.setUser(userId);
             rc.setPatientId(patientId);
 
             String request = rc.createRequest();
 
             //.. and evaluate it
-            PolicyEvaluator pe = new PolicyEvaluator();
-            EvaluationResult result = pe.evaluate(request, policyServerUrl + "/evaluate");
+            long generation = cache != null ? cache.getGeneration() : 0;
+            long start = System.nanoTime();
+            EvaluationResult result;
+            try {
+                result = getPolicyDecisionPoint().evaluate(request);
+            } finally {
+                AuthorizationTiming.of(theRequestDetails).addPdpCall(System.nanoTime() - start);
+            }
 
             if (result != null) {
-                return result.getResult() == EvaluationResultType.DENY;
+                boolean forbidden = result.getResult() == EvaluationResultType.DENY;
+                if (cache != null && result.isDefinite()) {
+                    cache.putForbidden(userId, action.toString(), resourceType, resourceId, patientId, forbidden, generation);
+                }
+                return forbidden;
             } else {
                 //return true;
                 throw new ForbiddenOperationException("Policy evaluation not possible - no access"); //TODO maybe find a better exception or no exception?
@@ -424,6 +811,163 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
         return true;
     }
 
+    /**
+     * check which resources of a search result are forbidden, with one multiple decision request per batch of resources
+     * The batches are checked in parallel; resources of batches without result at the deadline are forbidden (also for a single batch)
+     * @param theRequestDetails the request details
+     * @param resources the resources to check
+     * @return the ids of the forbidden resources
+     */
+    private Set<String> getForbiddenResourceIds(RequestDetails theRequestDetails, List<IBaseResource> resources) {
+        //each resource only once, even if it is included several times
+        Map<String, IBaseResource> resourcesByKey = new LinkedHashMap<>();
+        for (IBaseResource resource : resources) {
+            if (resource != null) {
+                resourcesByKey.putIfAbsent(resource.getClass().getSimpleName() + "/" + resource.getIdElement().getIdPart(), resource);
+            }
+        }
+        List<IBaseResource> toCheck = new ArrayList<>(resourcesByKey.values());
+        String userId = currentUserId;
+        String action = theRequestDetails.getRequestType().toString();
+
+        //a single batch runs on the executor as well, so the deadline applies to every search result
+        List<List<IBaseResource>> batches = new ArrayList<>();
+        List<Future<Set<String>>> futures = new ArrayList<>();
+        ExecutorService executor = getPdpExecutor();
+        for (int from = 0; from < toCheck.size(); from += pdpBatchSize) {
+            List<IBaseResource> batch = toCheck.subList(from, Math.min(from + pdpBatchSize, toCheck.size()));
+            batches.add(batch);
+            futures.add(executor.submit(() -> checkBatch(theRequestDetails, userId, action, batch)));
+        }
+
+        //join all results before the bundle is filtered
+        Set<String> forbiddenIds = new HashSet<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pdpDeadline);
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Future<Set<String>> future = futures.get(i);
+            try {
+                if (interrupted) {
+                    throw new TimeoutException();
+                }
+                forbiddenIds.addAll(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException | InterruptedException e) {
+                if (e instanceof InterruptedException) {
+                    interrupted = true;
+                }
+                //no decision in time: deny
+                future.cancel(true);
+                myLog.warn("No decision for " + batches.get(i).size() + " resources within the deadline, denying them");
+                for (IBaseResource resource : batches.get(i)) {
+                    forbiddenIds.add(resource.getIdElement().getIdPart());
+                }
+            } catch (ExecutionException e) {
+                for (Future<Set<String>> next : futures) {
+                    next.cancel(true);
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new ForbiddenOperationException("Policy evaluation not possible - no access");
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return forbiddenIds;
+    }
+
+    /**
+     * check a batch of resources with one multiple decision request
+     * @param theRequestDetails the request details
+     * @param userId the requesting user
+     * @param action the action, e.g. GET
+     * @param batch the resources to check
+     * @return the ids of the forbidden resources
+     */
+    private Set<String> checkBatch(RequestDetails theRequestDetails, String userId, String action, List<IBaseResource> batch) {
+        Set<String> forbiddenIds = new HashSet<>();
+
+        //only resources without cached decision are sent to the pdp
+        ResourceDecisionCache cache = getDecisionCache();
+        List<IBaseResource> toCheck = new ArrayList<>(batch.size());
+        List<String> patientIds = new ArrayList<>(batch.size());
+        for (IBaseResource resource : batch) {
+            String patientId = getPatientId(resource);
+            Boolean forbidden = cache == null ? null
+                    : cache.getForbidden(userId, action, resource.getClass().getSimpleName(), resource.getIdElement().getIdPart(), patientId);
+            if (forbidden == null) {
+                toCheck.add(resource);
+                patientIds.add(patientId);
+            } else if (forbidden) {
+                forbiddenIds.add(resource.getIdElement().getIdPart());
+            }
+        }
+        if (toCheck.isEmpty()) {
+            return forbiddenIds;
+        }
+
+        //create xacml request with one resource category per resource..
+        RequestCreator rc = new RequestCreator();
+        rc.setAction(action);
+        rc.setUser(userId);
+        for (int i = 0; i < toCheck.size(); i++) {
+            IBaseResource resource = toCheck.get(i);
+            rc.addResource(resource.getClass().getSimpleName(), resource.getIdElement().getIdPart(), patientIds.get(i));
+        }
+
+        //.. and evaluate it
+        long generation = cache != null ? cache.getGeneration() : 0;
+        long start = System.nanoTime();
+        List<EvaluationResult> results;
+        try {
+            results = getPolicyDecisionPoint().evaluateMultiple(rc.createMultipleRequest());
+        } finally {
+            AuthorizationTiming.of(theRequestDetails).addPdpCall(System.nanoTime() - start);
+        }
+
+        if (results == null || results.size() != toCheck.size()) {
+            //no result per resource, e.g. an error response
+            throw new ForbiddenOperationException("Policy evaluation not possible - no access");
+        }
+        for (int i = 0; i < toCheck.size(); i++) {
+            IBaseResource resource = toCheck.get(i);
+            boolean forbidden = results.get(i).getResult() == EvaluationResultType.DENY;
+            if (forbidden) {
+                forbiddenIds.add(resource.getIdElement().getIdPart());
+            }
+            if (cache != null && results.get(i).isDefinite()) {
+                cache.putForbidden(userId, action, resource.getClass().getSimpleName(), resource.getIdElement().getIdPart(), patientIds.get(i), forbidden, generation);
+            }
+        }
+        return forbiddenIds;
+    }
+
+    /**
+     * get the id of the patient a resource belongs to
+     * @param resource the resource
+     * @return the patient id
+     */
+    private String getPatientId(IBaseResource resource) {
+        String resourceName = resource.getClass().getSimpleName();
+        if (resourceName.equals("Patient")) {
+            return resource.getIdElement().getIdPart();
+        }
+        //get matching Patient ID
+        try {
+            Class c = Class.forName(resource.getClass().getName());
+
+            Method getSubject = c.getMethod(ReferenceDictionaries.PAT_REF_METH_DICT.get(resourceName));
+            Reference ref = (Reference) getSubject.invoke(resource);
+
+            return ref.getReference().split("/")[1];
+
+        } catch (ClassNotFoundException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+            e.printStackTrace();
+            throw new ResourceNotFoundException("Requested resource doesn't exist");
+        }
+    }
+
     private static List<IBaseResource> toListOfResourcesAndExcludeContainer(IBaseResource theResponseObject, FhirContext fhirContext) {
         if (theResponseObject == null) {
             return Collections.emptyList();
@@ -452,6 +996,17 @@ public class CustomAuthInterceptor extends ServerOperationInterceptorAdapter {
         return retVal;
     }
 
+    /**
+     * record the timing of a finished request and add the Server-Timing header, if configured
+     * @param timing the timing of the request
+     * @param theServletResponse the response
+     */
+    private void completeTiming(AuthorizationTiming timing, HttpServletResponse theServletResponse) {
+        if (timing.record() && serverTimingHeader && theServletResponse != null) {
+            theServletResponse.addHeader("Server-Timing", timing.toServerTiming());
+        }
+    }
+
     private void resetCurrentParameters() {
         currentUserId = null;
     }
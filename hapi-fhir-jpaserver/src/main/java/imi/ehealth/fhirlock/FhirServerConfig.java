@@ -62,7 +62,8 @@ public class FhirServerConfig extends BaseJavaConfigDstu3 {
         LocalContainerEntityManagerFactoryBean retVal = new LocalContainerEntityManagerFactoryBean();
         retVal.setPersistenceUnitName("HAPI_PU");
         retVal.setDataSource(dataSource());
-        retVal.setPackagesToScan("ca.uhn.fhir.jpa.entity");
+        //the access table of the authorization is created with the tables of the server
+        retVal.setPackagesToScan("ca.uhn.fhir.jpa.entity", "imi.ehealth.fhirlock.access");
         retVal.setPersistenceProvider(new HibernatePersistenceProvider());
         retVal.setJpaProperties(jpaProperties());
         return retVal;
@@ -133,6 +134,35 @@ public class FhirServerConfig extends BaseJavaConfigDstu3 {
         //myIntc.setPolicyServerUrl("http://localhost:4567");
         //for Docker all-in-one
         myIntc.setPolicyServerUrl("http://policy:4567");
+        //or run the pdp in-process (single node; mongo configured in dbconfig.xml of the PolicyService)
+        myIntc.setEmbeddedPdp(false);
+        //pooled keep-alive connections to the policy service (one route, so per route = total)
+        myIntc.setPdpMaxConnections(50);
+        myIntc.setPdpMaxConnectionsPerRoute(50);
+        //timeouts in ms: connect/wait for a pooled connection, read the response
+        myIntc.setPdpConnectTimeout(2000);
+        myIntc.setPdpSocketTimeout(10000);
+        //gzip the xacml requests and responses (pays off for large requests and responses with many advices)
+        myIntc.setPdpGzip(false);
+        //resources of a search result checked with one request to the pdp
+        myIntc.setPdpBatchSize(100);
+        //larger search results: batches checked in parallel, unchecked resources denied after the deadline (ms)
+        myIntc.setPdpParallelism(8);
+        myIntc.setPdpDeadline(10000);
+        //cache the decisions for resources (max entries, time to live in s; size 0 disables the cache)
+        myIntc.setDecisionCacheSize(10000);
+        myIntc.setDecisionCacheTtl(60);
+        //cache the access lists of the users (max users, time to live in s while changes are pushed by the policy
+        //service via websocket, and while not connected; size 0 disables the cache)
+        myIntc.setAccessListCacheSize(1000);
+        myIntc.setAccessListCacheTtl(3600);
+        myIntc.setAccessListFallbackTtl(30);
+        //or read the access lists from a copy in the server database, synced with the changes pushed by the policy service
+        //(status and full resync on /accessTable)
+        myIntc.setAccessTableDataSource(dataSource());
+        myIntc.setAccessTable(false);
+        //add the authorization timing as Server-Timing header (visible to clients, so for debugging)
+        myIntc.setServerTimingHeader(false);
         return myIntc;
     }
 }
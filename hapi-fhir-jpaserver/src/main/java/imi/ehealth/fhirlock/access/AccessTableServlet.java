@@ -0,0 +1,48 @@
+package imi.ehealth.fhirlock.access;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Status and full resync of the access table (see web.xml for the path)
+ * GET returns the sync status, POST starts a full resync
+ */
+public class AccessTableServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        PatientAccessTableSync sync = PatientAccessTableSync.getInstance();
+        if (sync == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "access table not enabled");
+            return;
+        }
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getWriter().write("synced=" + sync.isSynced() + "\n"
+                + "usable=" + sync.isUsable() + "\n"
+                + "lastResync=" + sync.getLastResyncMillis() + "\n"
+                + "lastResyncPatients=" + sync.getLastResyncPatients() + "\n"
+                + "lastEventLagMillis=" + sync.getLastEventLagMillis() + "\n"
+                + "pendingUpdates=" + sync.getPendingUpdates() + "\n"
+                + "eventsApplied=" + sync.getEventsApplied() + "\n"
+                + "resyncs=" + sync.getResyncCount() + "\n"
+                + "failures=" + sync.getFailureCount() + "\n");
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        PatientAccessTableSync sync = PatientAccessTableSync.getInstance();
+        if (sync == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "access table not enabled");
+            return;
+        }
+        sync.requestResync();
+        resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+        resp.setContentType("text/plain");
+        resp.getWriter().write("resync started");
+    }
+}
@@ -0,0 +1,71 @@
+package imi.ehealth.fhirlock.access;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A row of the materialized access lists: the user may access the patient
+ * Only mapped, so the table is created with the tables of the JPA server; it's read and written by {@link PatientAccessTable}
+ */
+@Entity
+@Table(name = PatientAccessTable.TABLE, indexes = {
+        @Index(name = "IDX_FL_ACCESS_PATIENT", columnList = "PATIENT_ID")
+})
+@IdClass(PatientAccess.Key.class)
+public class PatientAccess {
+
+    //the primary key (user first) serves the lookup of the patients of a user
+    @Id
+    @Column(name = "USER_ID", length = 200, nullable = false)
+    private String userId;
+
+    @Id
+    @Column(name = "PATIENT_ID", length = 200, nullable = false)
+    private String patientId;
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(String patientId) {
+        this.patientId = patientId;
+    }
+
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String userId;
+        private String patientId;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(userId, other.userId) && Objects.equals(patientId, other.patientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, patientId);
+        }
+    }
+}
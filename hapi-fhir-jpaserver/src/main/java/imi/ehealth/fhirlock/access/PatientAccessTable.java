@@ -0,0 +1,129 @@
+package imi.ehealth.fhirlock.access;
+
+import imi.ehealth.fhirlock.policy.PolicyDecisionPoint;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The access lists of the patients, materialized in the database of the FHIR server (table created by {@link PatientAccess})
+ * So the patients of a user are read with an indexed query instead of a call of the policy service.
+ * It only replaces that call: no search sql joins the table, the ids read from it are passed as search parameter like before
+ */
+public class PatientAccessTable {
+
+    static final String TABLE = "FHIRLOCK_PATIENT_ACCESS";
+
+    private static final int BATCH_SIZE = 500;
+
+    private final DataSource dataSource;
+
+    /**
+     * @param dataSource the data source of the FHIR server
+     */
+    public PatientAccessTable(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * get the patients a user may access
+     * @param userId the user
+     * @return the patient ids
+     * @throws SQLException if the query fails
+     */
+    public Set<String> getPatientIds(String userId) throws SQLException {
+        Set<String> patientIds = new LinkedHashSet<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement select = connection.prepareStatement("SELECT PATIENT_ID FROM " + TABLE + " WHERE USER_ID = ?")) {
+            select.setString(1, userId);
+            try (ResultSet result = select.executeQuery()) {
+                while (result.next()) {
+                    patientIds.add(result.getString(1));
+                }
+            }
+        }
+        return patientIds;
+    }
+
+    /**
+     * replace the access list of a patient
+     * @param patientId the patient
+     * @param userIds the users on the new access list
+     * @throws SQLException if the update fails
+     */
+    public void replacePatient(String patientId, Collection<String> userIds) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE PATIENT_ID = ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE + " (USER_ID, PATIENT_ID) VALUES (?, ?)")) {
+                delete.setString(1, patientId);
+                delete.executeUpdate();
+                for (String userId : new LinkedHashSet<>(userIds)) {
+                    insert.setString(1, userId);
+                    insert.setString(2, patientId);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * replace all access lists by the ones of the pdp (full resync)
+     * @param pdp the pdp
+     * @return number of patients
+     * @throws SQLException if the update fails
+     * @throws IOException if the lists can't be read from the pdp
+     */
+    public int replaceAll(PolicyDecisionPoint pdp) throws SQLException, IOException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement delete = connection.createStatement();
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE + " (USER_ID, PATIENT_ID) VALUES (?, ?)")) {
+                delete.executeUpdate("DELETE FROM " + TABLE);
+
+                int[] counts = new int[2]; //patients, rows in the current batch
+                pdp.readAllAccessLists((patientId, userIds) -> {
+                    try {
+                        for (String userId : new LinkedHashSet<>(userIds)) {
+                            insert.setString(1, userId);
+                            insert.setString(2, patientId);
+                            insert.addBatch();
+                            if (++counts[1] == BATCH_SIZE) {
+                                insert.executeBatch();
+                                counts[1] = 0;
+                            }
+                        }
+                        counts[0]++;
+                    } catch (SQLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+                insert.executeBatch();
+                connection.commit();
+                return counts[0];
+            } catch (IllegalStateException e) {
+                connection.rollback();
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw e;
+            } catch (SQLException | IOException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package imi.ehealth.fhirlock.access;
+
+import imi.ehealth.fhirlock.AccessListListener;
+import imi.ehealth.fhirlock.policy.PolicyDecisionPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the {@link PatientAccessTable} in sync with the access lists of the pdp
+ * Changes pushed by the pdp are applied incrementally; a full resync runs at the start, after "all lists changed"
+ * events (e.g. a reconnect of the event socket) and on request (see {@link AccessTableServlet}).
+ * All updates run one after another on a single thread, so a change is never overwritten by an older resync.
+ */
+public class PatientAccessTableSync implements AccessListListener {
+    private static final Logger myLog = LoggerFactory.getLogger(PatientAccessTableSync.class);
+
+    private static volatile PatientAccessTableSync instance;
+
+    private final PatientAccessTable table;
+    private final PolicyDecisionPoint pdp;
+    private final ThreadPoolExecutor updater = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "access-table-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //complete copy of the lists available (no resync running or failed)
+    private volatile boolean synced = false;
+    private final AtomicBoolean resyncPending = new AtomicBoolean();
+    //incremented whenever changes may have been missed; a resync started before doesn't sync the table
+    private final AtomicLong staleGeneration = new AtomicLong();
+
+    private volatile long lastResyncMillis;
+    private volatile int lastResyncPatients;
+    private volatile long lastEventLagMillis;
+    private final LongAdder eventsApplied = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param table the table
+     * @param pdp the pdp providing the access lists and their changes
+     */
+    public PatientAccessTableSync(PatientAccessTable table, PolicyDecisionPoint pdp) {
+        this.table = table;
+        this.pdp = pdp;
+    }
+
+    /**
+     * get the running sync (for the servlet and the metrics)
+     * @return the sync or null, if the access table isn't used
+     */
+    public static PatientAccessTableSync getInstance() {
+        return instance;
+    }
+
+    /**
+     * subscribe to the changes and copy all lists
+     */
+    public void start() {
+        instance = this;
+        pdp.addAccessListListener(this);
+        requestResync();
+    }
+
+    /**
+     * tells, if the table can be used instead of asking the pdp: it's completely synced and changes are pushed
+     * The pdp reports "all lists changed" whenever pushed changes may have been missed, which unsyncs the table
+     * @return true, if the table is up to date
+     */
+    public boolean isUsable() {
+        return synced && pdp.isAccessListPushActive();
+    }
+
+    public PatientAccessTable getTable() {
+        return table;
+    }
+
+    /**
+     * copy all access lists again (in the background; a pending resync isn't queued twice)
+     */
+    public void requestResync() {
+        if (resyncPending.compareAndSet(false, true)) {
+            updater.execute(this::resync);
+        }
+    }
+
+    @Override
+    public void accessListChanged(String patientId, List<String> users) {
+        accessListChanged(patientId, users, System.currentTimeMillis());
+    }
+
+    @Override
+    public void accessListChanged(String patientId, List<String> users, long changedMillis) {
+        updater.execute(() -> {
+            try {
+                table.replacePatient(patientId, users);
+                eventsApplied.increment();
+                lastEventLagMillis = Math.max(0, System.currentTimeMillis() - changedMillis);
+            } catch (SQLException e) {
+                //the table misses this change now
+                myLog.warn("Access list of patient " + patientId + " can't be updated, resyncing: " + e.getMessage());
+                failures.increment();
+                synced = false;
+                requestResync();
+            }
+        });
+    }
+
+    @Override
+    public void allAccessListsChanged() {
+        //changes may be missed (e.g. while disconnected or not watched), don't use the table until it's resynced
+        staleGeneration.incrementAndGet();
+        synced = false;
+        requestResync();
+    }
+
+    private void resync() {
+        resyncPending.set(false);
+        //the table is replaced in one transaction, so a synced table stays usable while it's rewritten
+        long generation = staleGeneration.get();
+        long start = System.currentTimeMillis();
+        try {
+            lastResyncPatients = table.replaceAll(pdp);
+            lastResyncMillis = System.currentTimeMillis();
+            resyncs.increment();
+            //otherwise the next queued resync syncs the table
+            synced = generation == staleGeneration.get();
+            myLog.info("Access table synced: " + lastResyncPatients + " patients in " + (lastResyncMillis - start) + " ms");
+        } catch (SQLException | IOException | RuntimeException e) {
+            myLog.warn("Access table can't be synced, using the pdp: " + e.getMessage());
+            failures.increment();
+        }
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    public long getLastResyncMillis() {
+        return lastResyncMillis;
+    }
+
+    public int getLastResyncPatients() {
+        return lastResyncPatients;
+    }
+
+    /**
+     * delay between a change at the pdp and its update of the table, for the last applied change
+     * @return the lag in ms
+     */
+    public long getLastEventLagMillis() {
+        return lastEventLagMillis;
+    }
+
+    /**
+     * changes and resyncs waiting to be applied
+     * @return the number of waiting updates
+     */
+    public int getPendingUpdates() {
+        return updater.getQueue().size();
+    }
+
+    public long getEventsApplied() {
+        return eventsApplied.sum();
+    }
+
+    public long getResyncCount() {
+        return resyncs.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+}
@@ -0,0 +1,196 @@
+package imi.ehealth.fhirlock.metrics;
+
+import imi.ehealth.fhirlock.access.PatientAccessTableSync;
+import imi.ehealth.fhirlock.policy.AccessListCache;
+import imi.ehealth.fhirlock.policy.ResourceDecisionCache;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the authorization in the interceptor in prometheus text format
+ * Keeps latency histograms of the authorization stages and counters of pdp calls and filtered resources
+ */
+public final class AuthorizationMetrics {
+
+    //upper bounds of the histogram buckets in seconds
+    private static final double[] BUCKETS = {0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final Histogram authorization = new Histogram();
+    private static final Histogram authentication = new Histogram();
+    private static final Histogram accessList = new Histogram();
+    private static final Histogram rewrite = new Histogram();
+    private static final Histogram pdpPerRequest = new Histogram();
+    private static final Histogram pdpCall = new Histogram();
+
+    private static final LongAdder requests = new LongAdder();
+    private static final LongAdder pdpCalls = new LongAdder();
+    private static final LongAdder resourcesChecked = new LongAdder();
+    private static final LongAdder resourcesFiltered = new LongAdder();
+
+    private static volatile ResourceDecisionCache decisionCache;
+    private static volatile AccessListCache accessListCache;
+
+    private AuthorizationMetrics() {
+    }
+
+    /**
+     * record the timing of an authorized request
+     * @param timing the timing
+     */
+    public static void record(AuthorizationTiming timing) {
+        requests.increment();
+        authorization.observe(timing.getTotalNanos());
+        authentication.observe(timing.getAuthenticationNanos());
+        if (timing.getAccessListNanos() > 0) {
+            accessList.observe(timing.getAccessListNanos());
+            rewrite.observe(timing.getRewriteNanos());
+        }
+        if (timing.getPdpCalls() > 0) {
+            pdpPerRequest.observe(timing.getPdpNanos());
+        }
+        resourcesChecked.add(timing.getResourcesChecked());
+        resourcesFiltered.add(timing.getResourcesFiltered());
+    }
+
+    /**
+     * record a single call of the pdp
+     * @param nanos the duration in ns
+     */
+    public static void recordPdpCall(long nanos) {
+        pdpCalls.increment();
+        pdpCall.observe(nanos);
+    }
+
+    /**
+     * export the statistics of the decision cache of the interceptor
+     * @param cache the cache
+     */
+    public static void setDecisionCache(ResourceDecisionCache cache) {
+        decisionCache = cache;
+    }
+
+    /**
+     * export the statistics of the access list cache of the interceptor
+     * @param cache the cache
+     */
+    public static void setAccessListCache(AccessListCache cache) {
+        accessListCache = cache;
+    }
+
+    /**
+     * write all metrics in prometheus text format
+     * @return the metrics
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+
+        writeHistogram(out, "fhirlock_authorization_duration_seconds", "Authorization overhead of a FHIR request (all stages)", authorization);
+        writeHistogram(out, "fhirlock_authentication_duration_seconds", "Duration of the token check", authentication);
+        writeHistogram(out, "fhirlock_access_list_duration_seconds", "Duration of the /patientAccessList call", accessList);
+        writeHistogram(out, "fhirlock_search_rewrite_duration_seconds", "Duration of the search parameter rewriting", rewrite);
+        writeHistogram(out, "fhirlock_pdp_request_duration_seconds", "Time spent in pdp calls per FHIR request", pdpPerRequest);
+        writeHistogram(out, "fhirlock_pdp_call_duration_seconds", "Duration of a single /evaluate call", pdpCall);
+
+        writeCounter(out, "fhirlock_authorized_requests_total", "FHIR requests passed through the authorization", requests.sum());
+        writeCounter(out, "fhirlock_pdp_calls_total", "Calls of /evaluate", pdpCalls.sum());
+        writeCounter(out, "fhirlock_resources_checked_total", "Resources checked against the pdp", resourcesChecked.sum());
+        writeCounter(out, "fhirlock_resources_filtered_total", "Resources removed from responses or denied", resourcesFiltered.sum());
+
+        ResourceDecisionCache cache = decisionCache;
+        if (cache != null) {
+            long hits = cache.getHitCount();
+            long misses = cache.getMissCount();
+            writeCounter(out, "fhirlock_decision_cache_hits_total", "Resource decisions answered from the cache", hits);
+            writeCounter(out, "fhirlock_decision_cache_misses_total", "Resource decisions not in the cache", misses);
+            writeCounter(out, "fhirlock_decision_cache_evictions_total", "Decisions evicted from the cache", cache.getEvictionCount());
+            writeGauge(out, "fhirlock_decision_cache_size", "Cached decisions", String.valueOf(cache.size()));
+            writeGauge(out, "fhirlock_decision_cache_hit_ratio", "Hits of all decision cache lookups",
+                    format(hits + misses == 0 ? 0 : hits / (double) (hits + misses)));
+        }
+
+        AccessListCache lists = accessListCache;
+        if (lists != null) {
+            writeCounter(out, "fhirlock_access_list_cache_hits_total", "Access lists answered from the cache", lists.getHitCount());
+            writeCounter(out, "fhirlock_access_list_cache_misses_total", "Access lists loaded from the pdp", lists.getMissCount());
+            writeGauge(out, "fhirlock_access_list_cache_size", "Cached access lists", String.valueOf(lists.size()));
+        }
+
+        PatientAccessTableSync sync = PatientAccessTableSync.getInstance();
+        if (sync != null) {
+            writeGauge(out, "fhirlock_access_table_synced", "1, if the access table holds a complete copy of the access lists", sync.isSynced() ? "1" : "0");
+            writeGauge(out, "fhirlock_access_table_lag_seconds", "Delay between an access list change and its update of the table (last change)",
+                    format(sync.getLastEventLagMillis() / 1000.0));
+            writeGauge(out, "fhirlock_access_table_pending_updates", "Changes and resyncs waiting to be applied", String.valueOf(sync.getPendingUpdates()));
+            writeGauge(out, "fhirlock_access_table_last_resync_timestamp_seconds", "Time of the last full resync",
+                    format(sync.getLastResyncMillis() / 1000.0));
+            writeGauge(out, "fhirlock_access_table_patients", "Patients copied by the last full resync", String.valueOf(sync.getLastResyncPatients()));
+            writeCounter(out, "fhirlock_access_table_events_total", "Access list changes applied to the table", sync.getEventsApplied());
+            writeCounter(out, "fhirlock_access_table_resyncs_total", "Full resyncs of the table", sync.getResyncCount());
+            writeCounter(out, "fhirlock_access_table_failures_total", "Failed updates and resyncs of the table", sync.getFailureCount());
+        }
+        return out.toString();
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String help, Histogram histogram) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        histogram.write(out, name);
+    }
+
+    private static void writeCounter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void writeGauge(StringBuilder out, String name, String help, String value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * histogram with fixed buckets; lock free, as it is updated by all request threads
+     */
+    private static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void observe(long nanos) {
+            double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        private void write(StringBuilder out, String name) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += buckets[i].sum();
+                out.append(name).append("_bucket{le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            long total = Math.max(count.sum(), cumulative);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+            out.append(name).append("_sum ").append(format(sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1))).append('\n');
+            out.append(name).append("_count ").append(total).append('\n');
+        }
+    }
+}
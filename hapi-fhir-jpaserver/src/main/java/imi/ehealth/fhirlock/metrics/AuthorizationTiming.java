@@ -0,0 +1,130 @@
+package imi.ehealth.fhirlock.metrics;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent for the authorization of one FHIR request, split by stage
+ * Kept in the user data of the request, so it doesn't depend on the (shared) interceptor instance
+ */
+public class AuthorizationTiming {
+    private static final String USER_DATA_KEY = AuthorizationTiming.class.getName();
+
+    private volatile long authenticationNanos;
+    private volatile long accessListNanos;
+    private volatile long rewriteNanos;
+    //pdp calls might be made from several threads
+    private final LongAdder pdpNanos = new LongAdder();
+    private final LongAdder pdpCalls = new LongAdder();
+    private final LongAdder resourcesChecked = new LongAdder();
+    private final LongAdder resourcesFiltered = new LongAdder();
+
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    /**
+     * get the timing of a request, create it if not yet available
+     * @param requestDetails the request
+     * @return the timing
+     */
+    public static AuthorizationTiming of(RequestDetails requestDetails) {
+        return (AuthorizationTiming) requestDetails.getUserData().computeIfAbsent(USER_DATA_KEY, k -> new AuthorizationTiming());
+    }
+
+    public void addAuthenticationNanos(long nanos) {
+        authenticationNanos += nanos;
+    }
+
+    public void addAccessListNanos(long nanos) {
+        accessListNanos += nanos;
+    }
+
+    public void addRewriteNanos(long nanos) {
+        rewriteNanos += nanos;
+    }
+
+    /**
+     * count a call of the pdp
+     * @param nanos the duration of the call in ns
+     */
+    public void addPdpCall(long nanos) {
+        pdpNanos.add(nanos);
+        pdpCalls.increment();
+        AuthorizationMetrics.recordPdpCall(nanos);
+    }
+
+    public void addResourcesChecked(int count) {
+        resourcesChecked.add(count);
+    }
+
+    public void addResourcesFiltered(int count) {
+        resourcesFiltered.add(count);
+    }
+
+    public long getAuthenticationNanos() {
+        return authenticationNanos;
+    }
+
+    public long getAccessListNanos() {
+        return accessListNanos;
+    }
+
+    public long getRewriteNanos() {
+        return rewriteNanos;
+    }
+
+    public long getPdpNanos() {
+        return pdpNanos.sum();
+    }
+
+    public long getPdpCalls() {
+        return pdpCalls.sum();
+    }
+
+    public long getResourcesChecked() {
+        return resourcesChecked.sum();
+    }
+
+    public long getResourcesFiltered() {
+        return resourcesFiltered.sum();
+    }
+
+    /**
+     * the whole authorization overhead of the request
+     * @return the sum of all stages in ns
+     */
+    public long getTotalNanos() {
+        return authenticationNanos + accessListNanos + rewriteNanos + pdpNanos.sum();
+    }
+
+    /**
+     * add the timing to the metrics; only the first call per request counts
+     * @return true, if recorded by this call
+     */
+    public boolean record() {
+        if (!recorded.compareAndSet(false, true)) {
+            return false;
+        }
+        AuthorizationMetrics.record(this);
+        return true;
+    }
+
+    /**
+     * value of a Server-Timing header (durations in ms)
+     * @return the header value
+     */
+    public String toServerTiming() {
+        return "authn;dur=" + toMillis(authenticationNanos)
+                + ", acl;dur=" + toMillis(accessListNanos)
+                + ", rewrite;dur=" + toMillis(rewriteNanos)
+                + ", pdp;dur=" + toMillis(pdpNanos.sum()) + ";desc=\"" + pdpCalls.sum() + " calls\""
+                + ", authz;dur=" + toMillis(getTotalNanos()) + ";desc=\"" + resourcesFiltered.sum() + " of " + resourcesChecked.sum() + " filtered\"";
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
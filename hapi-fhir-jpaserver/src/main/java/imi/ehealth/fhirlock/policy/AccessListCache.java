@@ -0,0 +1,98 @@
+package imi.ehealth.fhirlock.policy;
+
+import imi.ehealth.fhirlock.AccessListListener;
+import imi.ehealth.fhirlock.ExpiringCache;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Caches the patient access lists of the users in the server
+ * Changes are pushed by the pdp (see {@link PolicyDecisionPoint#addAccessListListener}) and evict exactly the affected users;
+ * while no changes are pushed (e.g. the connection dropped), lists are only cached for the short fallback ttl
+ */
+public class AccessListCache implements AccessListListener {
+
+    private final ExpiringCache<String, Set<String>> accessLists;
+    private final long ttlSeconds;
+    private final long fallbackTtlSeconds;
+    private final BooleanSupplier pushActive;
+    //incremented on every change, so lists loaded before a change aren't cached after it
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of cached users
+     * @param ttlSeconds time to live of a list while changes are pushed
+     * @param fallbackTtlSeconds time to live of a list while changes are not pushed
+     * @param pushActive tells, if changes are currently pushed
+     */
+    public AccessListCache(int maxSize, long ttlSeconds, long fallbackTtlSeconds, BooleanSupplier pushActive) {
+        this.accessLists = new ExpiringCache<>(maxSize, ttlSeconds, TimeUnit.SECONDS);
+        this.ttlSeconds = ttlSeconds;
+        this.fallbackTtlSeconds = fallbackTtlSeconds;
+        this.pushActive = pushActive;
+    }
+
+    /**
+     * get the cached access list of a user
+     * @param user the user
+     * @return the patient ids or null, if not cached
+     */
+    public Set<String> get(String user) {
+        return accessLists.get(user);
+    }
+
+    /**
+     * get the current generation, to be passed to {@link #put} with the list loaded afterwards
+     * @return the generation
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * cache the access list of a user, if no list changed since it was loaded
+     * @param user the user
+     * @param patientIds the patient ids (not changed afterwards)
+     * @param loadedGeneration the generation before the list was loaded
+     */
+    public void put(String user, Set<String> patientIds, long loadedGeneration) {
+        long ttl = pushActive.getAsBoolean() ? ttlSeconds : fallbackTtlSeconds;
+        accessLists.put(user, Collections.unmodifiableSet(patientIds), 1, ttl, TimeUnit.SECONDS);
+        if (generation.get() != loadedGeneration) {
+            //changed meanwhile: the list might be outdated
+            accessLists.invalidate(user);
+        }
+    }
+
+    @Override
+    public void accessListChanged(String patientId, List<String> users) {
+        generation.incrementAndGet();
+        //users on the new list might have been added, users with the patient on their cached list might have been removed
+        Set<String> added = new HashSet<>(users);
+        accessLists.invalidateIf((user, patientIds) -> added.contains(user) || patientIds.contains(patientId));
+    }
+
+    @Override
+    public void allAccessListsChanged() {
+        generation.incrementAndGet();
+        accessLists.invalidateAll();
+    }
+
+    public int size() {
+        return accessLists.size();
+    }
+
+    public long getHitCount() {
+        return accessLists.getHitCount();
+    }
+
+    public long getMissCount() {
+        return accessLists.getMissCount();
+    }
+}
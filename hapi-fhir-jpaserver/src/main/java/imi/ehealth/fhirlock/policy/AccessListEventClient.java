@@ -0,0 +1,176 @@
+package imi.ehealth.fhirlock.policy;
+
+import imi.ehealth.fhirlock.AccessListListener;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives the access list changes of the policy service (websocket /accessListEvents) and passes them to the listeners
+ * Reconnects after the connection dropped; as changes might have been missed, all lists are invalidated then
+ * The events are only complete while the policy service watches the database (its "status" message);
+ * when it starts watching again, all lists are invalidated as well
+ * The connection is pinged regularly, so it isn't closed as idle and a dead connection is noticed
+ */
+public class AccessListEventClient {
+    private static final Logger myLog = LoggerFactory.getLogger(AccessListEventClient.class);
+
+    private static final long CHECK_SECONDS = 10;
+    private static final long CONNECT_TIMEOUT_SECONDS = 5;
+
+    private final URI uri;
+    private final List<AccessListListener> listeners = new CopyOnWriteArrayList<>();
+    private final WebSocketClient client = new WebSocketClient();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "access-list-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Session session;
+    private volatile boolean connected = false;
+    //the policy service watches the changes in the database
+    private volatile boolean watching = false;
+
+    /**
+     * @param uri uri of the websocket, e.g. ws://policy:4567/accessListEvents
+     */
+    public AccessListEventClient(URI uri) {
+        this.uri = uri;
+    }
+
+    public void addListener(AccessListListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * tells, if changes are received at the moment
+     * @return true, if connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * tells, if all changes are pushed at the moment: connected and the policy service watches the database
+     * @return true, if the pushed changes can be relied on
+     */
+    public boolean isPushActive() {
+        return connected && watching;
+    }
+
+    /**
+     * connect, and reconnect whenever the connection is lost
+     */
+    public void start() {
+        try {
+            client.start();
+        } catch (Exception e) {
+            myLog.warn("Websocket client for access list events can't be started: " + e.getMessage());
+            return;
+        }
+        reconnector.scheduleWithFixedDelay(this::checkConnection, 0, CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void checkConnection() {
+        Session current = session;
+        if (connected && current != null) {
+            try {
+                current.getRemote().sendPing(ByteBuffer.allocate(0));
+            } catch (IOException e) {
+                myLog.debug("Ping of " + uri + " failed: " + e.getMessage());
+                current.close();
+            }
+            return;
+        }
+        try {
+            client.connect(new EventSocket(), uri).get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            myLog.debug("No connection to " + uri + ": " + e.getMessage());
+        }
+    }
+
+    private void setConnected(boolean connected) {
+        this.connected = connected;
+        //changes while disconnected are unknown
+        for (AccessListListener listener : listeners) {
+            listener.allAccessListsChanged();
+        }
+    }
+
+    @WebSocket
+    public class EventSocket {
+
+        @OnWebSocketConnect
+        public void onConnect(Session session) {
+            myLog.info("Receiving access list changes from " + uri);
+            AccessListEventClient.this.session = session;
+            setConnected(true);
+        }
+
+        @OnWebSocketMessage
+        public void onMessage(String message) {
+            String[] parts = message.split("\t", -1);
+            if (parts[0].equals("status")) {
+                boolean nowWatching = parts.length > 1 && parts[1].equals("watching");
+                if (nowWatching && !watching) {
+                    //changes while the policy service didn't watch are unknown; invalidate before relying on the events
+                    for (AccessListListener listener : listeners) {
+                        listener.allAccessListsChanged();
+                    }
+                } else if (!nowWatching) {
+                    myLog.warn("Policy service doesn't watch access list changes, caching them shortly only");
+                }
+                watching = nowWatching;
+            } else if (parts[0].equals("patient") && parts.length >= 3) {
+                List<String> users = parts[2].isEmpty() ? Collections.emptyList() : Arrays.asList(parts[2].split(";"));
+                long changedMillis = parts.length > 3 ? parseMillis(parts[3]) : System.currentTimeMillis();
+                for (AccessListListener listener : listeners) {
+                    listener.accessListChanged(parts[1], users, changedMillis);
+                }
+            } else {
+                for (AccessListListener listener : listeners) {
+                    listener.allAccessListsChanged();
+                }
+            }
+        }
+
+        private long parseMillis(String millis) {
+            try {
+                return Long.parseLong(millis);
+            } catch (NumberFormatException e) {
+                return System.currentTimeMillis();
+            }
+        }
+
+        @OnWebSocketClose
+        public void onClose(int statusCode, String reason) {
+            myLog.warn("Connection for access list changes closed: " + reason);
+            session = null;
+            watching = false;
+            setConnected(false);
+        }
+
+        @OnWebSocketError
+        public void onError(Throwable cause) {
+            myLog.debug("Access list events error: " + cause.getMessage());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package imi.ehealth.fhirlock.policy;
+
+import imi.ehealth.fhirlock.AccessListListener;
+import imi.ehealth.fhirlock.MongoConnectionManager;
+import imi.ehealth.fhirlock.MongoQuery;
+import imi.ehealth.fhirlock.PolicyChangeWatcher;
+import imi.ehealth.fhirlock.PolicyIndexes;
+import imi.ehealth.fhirlock.ServiceConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs the pdp of the PolicyService (balana with the mongo finder module) inside the server
+ * No http hop to the policy service; the mongo database and the caches are configured by the
+ * dbconfig.xml and serviceconfig.xml of the PolicyService
+ */
+public class EmbeddedPolicyDecisionPoint implements PolicyDecisionPoint {
+    private static final Logger myLog = LoggerFactory.getLogger(EmbeddedPolicyDecisionPoint.class);
+
+    private final imi.ehealth.fhirlock.PolicyEvaluator evaluator;
+    private final MongoQuery query;
+    private final PolicyChangeWatcher watcher;
+    //reads the results from the responses, like for the policy service
+    private final PolicyEvaluator responseReader = new PolicyEvaluator();
+
+    /**
+     * start the pdp like the policy service does: indexes, warm-up and change watching as configured
+     */
+    public EmbeddedPolicyDecisionPoint() {
+        myLog.info("Starting embedded policy decision point..");
+        ServiceConfiguration serviceConfig = ServiceConfiguration.getConfiguration();
+        if (serviceConfig.isEnsureIndexes()) {
+            new PolicyIndexes(MongoConnectionManager.getInstance()).bootstrap(serviceConfig.isFailOnCollectionScan());
+        }
+
+        evaluator = imi.ehealth.fhirlock.PolicyEvaluator.getEvaluator();
+        if (serviceConfig.isWarmUp()) {
+            evaluator.warmUp();
+        }
+
+        query = new MongoQuery();
+        watcher = serviceConfig.isWatchPolicyChanges() ? PolicyChangeWatcher.start(query, evaluator) : null;
+    }
+
+    @Override
+    public EvaluationResult evaluate(String xacmlRequest) {
+        return responseReader.parseResponse(evaluator.evaluate(xacmlRequest));
+    }
+
+    @Override
+    public List<EvaluationResult> evaluateMultiple(String xacmlRequest) {
+        return responseReader.parseResponses(evaluator.evaluate(xacmlRequest));
+    }
+
+    @Override
+    public void readAllAccessLists(BiConsumer<String, List<String>> consumer) {
+        query.forEachAccessList(ServiceConfiguration.getConfiguration().getPatientAccessListBatchSize(), consumer);
+    }
+
+    @Override
+    public void addAccessListListener(AccessListListener listener) {
+        if (watcher != null) {
+            watcher.addAccessListListener(listener);
+        }
+    }
+
+    @Override
+    public boolean isAccessListPushActive() {
+        return watcher != null && watcher.isWatching();
+    }
+
+    @Override
+    public List<String> getPatientAccessList(String userId) {
+        return query.getPatientAccessList(userId);
+    }
+}
@@ -8,6 +8,8 @@ import java.util.List;
  */
 public class EvaluationResult {
     private EvaluationResultType result;
+    //true, if the pdp decided permit or deny (not indeterminate or not applicable, which are handled as deny)
+    private boolean definite;
 
     public EvaluationResult() {
         this.resultIds = new ArrayList<>();
@@ -47,4 +49,16 @@ public class EvaluationResult {
         this.result = result;
     }
 
+    /**
+     * whether the result is a real permit or deny of the pdp, which may be cached
+     * @return true, if definite
+     */
+    public boolean isDefinite() {
+        return definite;
+    }
+
+    public void setDefinite(boolean definite) {
+        this.definite = definite;
+    }
+
 }
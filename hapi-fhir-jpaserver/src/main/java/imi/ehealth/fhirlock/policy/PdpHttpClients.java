@@ -0,0 +1,69 @@
+package imi.ehealth.fhirlock.policy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the shared http client for the calls of the policy service
+ * Connections are pooled and kept alive, so a FHIR request doesn't pay a tcp handshake per pdp call
+ */
+public final class PdpHttpClients {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 10000;
+
+    //idle connections are closed after this time, before the server closes them
+    private static final long MAX_IDLE_SECONDS = 30;
+
+    private PdpHttpClients() {
+    }
+
+    /**
+     * create a pooled client
+     * @param maxConnections max open connections in total
+     * @param maxConnectionsPerRoute max open connections to one host (usually the only one: the policy service)
+     * @param connectTimeout timeout in ms for opening a connection and for waiting on a free pooled connection
+     * @param socketTimeout timeout in ms for waiting on the response
+     * @param gzip true, to accept gzip compressed responses (requests are compressed by the {@link PolicyEvaluator})
+     * @return the client
+     */
+    public static CloseableHttpClient create(int maxConnections, int maxConnectionsPerRoute, int connectTimeout,
+                                             int socketTimeout, boolean gzip) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        //check connections which were idle for a while before reusing them (stale after a restart of the service)
+        connectionManager.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+        if (!gzip) {
+            //don't send Accept-Encoding, so the responses stay uncompressed
+            builder.disableContentCompression();
+        }
+        return builder.build();
+    }
+
+    /**
+     * create a pooled client with the default settings and without compression
+     * @return the client
+     */
+    public static CloseableHttpClient createDefault() {
+        return create(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, false);
+    }
+}
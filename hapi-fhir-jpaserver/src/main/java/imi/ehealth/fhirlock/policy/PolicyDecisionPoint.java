@@ -0,0 +1,53 @@
+package imi.ehealth.fhirlock.policy;
+
+import imi.ehealth.fhirlock.AccessListListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The policy decision point used by the interceptor, either the distant policy service or one embedded in the server
+ */
+public interface PolicyDecisionPoint {
+
+    /**
+     * evaluate a xacml request
+     * @param xacmlRequest the xacml request as string
+     * @return the result or null, if no evaluation was possible
+     */
+    EvaluationResult evaluate(String xacmlRequest);
+
+    /**
+     * evaluate a multiple decision request (e.g. created by {@link RequestCreator#createMultipleRequest()})
+     * @param xacmlRequest the xacml request as string
+     * @return the results in the order of the individual requests or null, if no evaluation was possible
+     */
+    List<EvaluationResult> evaluateMultiple(String xacmlRequest);
+
+    /**
+     * get the patients a user is basically allowed to see
+     * @param userId the user
+     * @return the patient resource ids
+     */
+    List<String> getPatientAccessList(String userId);
+
+    /**
+     * read the access lists of all patients, e.g. to copy them into the database of the server
+     * @param consumer gets the patient id and the users on its access list
+     * @throws IOException if the lists can't be read
+     */
+    void readAllAccessLists(BiConsumer<String, List<String>> consumer) throws IOException;
+
+    /**
+     * get notified about changed access lists (as far as the pdp can push them)
+     * @param listener the listener
+     */
+    void addAccessListListener(AccessListListener listener);
+
+    /**
+     * tells, if changes of the access lists are pushed to the listeners at the moment
+     * @return true, if the listeners are notified about all changes
+     */
+    boolean isAccessListPushActive();
+}
@@ -2,22 +2,32 @@ package imi.ehealth.fhirlock.policy;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.wso2.balana.ParsingException;
 import org.wso2.balana.ctx.AbstractResult;
 import org.wso2.balana.ctx.AttributeAssignment;
 import org.wso2.balana.ctx.ResponseCtx;
+import org.wso2.balana.ctx.xacml3.Result;
 import org.wso2.balana.xacml3.Advice;
 
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
 import static org.wso2.balana.ctx.AbstractResult.DECISION_PERMIT;
 
@@ -27,6 +37,25 @@ import static org.wso2.balana.ctx.AbstractResult.DECISION_PERMIT;
 public class PolicyEvaluator {
     private final String ATTRIBUTE_ID = "urn:ruleInformation:resourceid";
 
+    private final CloseableHttpClient httpClient;
+    private final boolean gzipRequests;
+
+    /**
+     * evaluator using a shared pooled client with the default settings
+     */
+    public PolicyEvaluator() {
+        this(null, false);
+    }
+
+    /**
+     * @param httpClient the (pooled) client for the pdp calls; should be shared, as it keeps the open connections
+     * @param gzipRequests true, to send the requests gzip compressed
+     */
+    public PolicyEvaluator(CloseableHttpClient httpClient, boolean gzipRequests) {
+        this.httpClient = httpClient;
+        this.gzipRequests = gzipRequests;
+    }
+
     /**
      * evaluate a xacml request and return the result in form of a @EvaluationResult
      * @param xacmlRequest the xacml request as string
@@ -36,6 +65,18 @@ public class PolicyEvaluator {
     public EvaluationResult evaluate(String xacmlRequest,String path) {
         //Send request to pdp
         String response = evaluateRequest(xacmlRequest, path);
+        return parseResponse(response);
+    }
+
+    /**
+     * read the result of a xacml response in form of a @EvaluationResult
+     * @param response the xacml response as string
+     * @return the result or null, if there is no (valid) response
+     */
+    public EvaluationResult parseResponse(String response) {
+        if (response == null) {
+            return null;
+        }
         try {
             EvaluationResult er = new EvaluationResult();
             //load xml document
@@ -45,25 +86,7 @@ public class PolicyEvaluator {
 
                 //get the first result
                 AbstractResult result = responseCtx.getResults().iterator().next();
-
-                if (result.getDecision() == DECISION_PERMIT) {
-                    er.setResult(EvaluationResultType.PERMIT);
-                    //loop all advices
-                    for (Advice advice : result.getAdvices()) {
-                        for (AttributeAssignment att : advice.getAssignments()) {
-                            switch (att.getAttributeId().toString()) {
-                                case ATTRIBUTE_ID:
-                                    //this is the important part: get all the allowed ids
-                                    er.addResultId(att.getContent());
-                                    break;
-
-                            }
-                        }
-                    }
-                } else {
-                    //result is "deny"
-                    er.setResult(EvaluationResultType.DENY);
-                }
+                er = toEvaluationResult(result);
             } else {
                 //no decision possible due to wrong formatted xml
                 er.setResult(EvaluationResultType.NO_DECISION);
@@ -75,6 +98,61 @@ public class PolicyEvaluator {
         }
     }
 
+    /**
+     * read the results of a response to a multiple decision request
+     * @param response the xacml response as string
+     * @return the results in the order of the individual requests or null, if there is no (valid) response
+     */
+    public List<EvaluationResult> parseResponses(String response) {
+        if (response == null) {
+            return null;
+        }
+        Element xacmlResponse = this.getXacmlResponse(response);
+        if (xacmlResponse == null) {
+            return null;
+        }
+        try {
+            //the results are read in document order: balana keeps them in an unordered set in the ResponseCtx
+            List<EvaluationResult> results = new ArrayList<>();
+            NodeList nodes = xacmlResponse.getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item(i);
+                if (node.getNodeType() == Node.ELEMENT_NODE && "Result".equals(node.getLocalName())) {
+                    results.add(toEvaluationResult(Result.getInstance(node)));
+                }
+            }
+            return results;
+        } catch (ParsingException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private EvaluationResult toEvaluationResult(AbstractResult result) {
+        EvaluationResult er = new EvaluationResult();
+        //indeterminate (e.g. a database error of the pdp) and not applicable are denied, but not definite
+        er.setDefinite(result.getDecision() == DECISION_PERMIT || result.getDecision() == AbstractResult.DECISION_DENY);
+        if (result.getDecision() == DECISION_PERMIT) {
+            er.setResult(EvaluationResultType.PERMIT);
+            //loop all advices
+            for (Advice advice : result.getAdvices()) {
+                for (AttributeAssignment att : advice.getAssignments()) {
+                    switch (att.getAttributeId().toString()) {
+                        case ATTRIBUTE_ID:
+                            //this is the important part: get all the allowed ids
+                            er.addResultId(att.getContent());
+                            break;
+
+                    }
+                }
+            }
+        } else {
+            //result is "deny"
+            er.setResult(EvaluationResultType.DENY);
+        }
+        return er;
+    }
+
     /**
      * Send request to server
      * @param xacmlRequest the request so send
@@ -86,18 +164,20 @@ public class PolicyEvaluator {
         CloseableHttpResponse response = null;
         try {
             //create http request to send to pdp server
-            CloseableHttpClient httpclient = HttpClients.createDefault();
             HttpPost httpPost = new HttpPost(path);
 
             //xacml request as body content
-            StringEntity entity = new StringEntity(xacmlRequest);
+            HttpEntity entity = new StringEntity(xacmlRequest, ContentType.create("application/xml", StandardCharsets.UTF_8));
+            if (gzipRequests) {
+                entity = new GzipCompressingEntity(entity);
+            }
             httpPost.setEntity(entity);
-            httpPost.setHeader("Content-type", "application/xml");
 
-            response = httpclient.execute(httpPost);
+            response = getHttpClient().execute(httpPost);
 
+            //consuming the entity completely releases the connection back to the pool
             HttpEntity httpEntity = response.getEntity();
-            responseXml = EntityUtils.toString(httpEntity);
+            responseXml = EntityUtils.toString(httpEntity, StandardCharsets.UTF_8);
             EntityUtils.consume(httpEntity);
         }
         catch (IOException e) {
@@ -116,6 +196,36 @@ public class PolicyEvaluator {
         return responseXml;
     }
 
+    /**
+     * Send request to server and read the response line by line, without keeping it in memory
+     * @param body the request body
+     * @param path path of the pdp service
+     * @param lineConsumer gets each line of the response
+     * @throws IOException if the request fails
+     */
+    public void readLines(String body, String path, Consumer<String> lineConsumer) throws IOException {
+        HttpPost httpPost = new HttpPost(path);
+        httpPost.setEntity(new StringEntity(body, ContentType.create("text/plain", StandardCharsets.UTF_8)));
+        try (CloseableHttpResponse response = getHttpClient().execute(httpPost)) {
+            HttpEntity httpEntity = response.getEntity();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(httpEntity.getContent(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineConsumer.accept(line);
+                }
+            }
+        }
+    }
+
+    private CloseableHttpClient getHttpClient() {
+        return httpClient != null ? httpClient : DefaultClientHolder.CLIENT;
+    }
+
+    //created on first use only, parsing responses needs no client
+    private static final class DefaultClientHolder {
+        private static final CloseableHttpClient CLIENT = PdpHttpClients.createDefault();
+    }
+
     /**
      * load xml document from response xml
      * @param response the xacml response as xml string
@@ -0,0 +1,93 @@
+package imi.ehealth.fhirlock.policy;
+
+import imi.ehealth.fhirlock.AccessListEvents;
+import imi.ehealth.fhirlock.AccessListListener;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends the requests to the policy service via http
+ */
+public class RemotePolicyDecisionPoint implements PolicyDecisionPoint {
+
+    private final String policyServerUrl;
+    private final PolicyEvaluator policyEvaluator;
+    //connected when the first listener is added
+    private AccessListEventClient accessListEvents;
+
+    /**
+     * @param policyServerUrl url of the policy service, e.g. http://policy:4567
+     */
+    public RemotePolicyDecisionPoint(String policyServerUrl) {
+        this.policyServerUrl = policyServerUrl;
+        this.policyEvaluator = new PolicyEvaluator();
+    }
+
+    /**
+     * @param policyServerUrl url of the policy service, e.g. http://policy:4567
+     * @param httpClient the pooled client, see {@link PdpHttpClients}
+     * @param gzip true, to send the requests gzip compressed
+     */
+    public RemotePolicyDecisionPoint(String policyServerUrl, CloseableHttpClient httpClient, boolean gzip) {
+        this.policyServerUrl = policyServerUrl;
+        this.policyEvaluator = new PolicyEvaluator(httpClient, gzip);
+    }
+
+    @Override
+    public EvaluationResult evaluate(String xacmlRequest) {
+        return policyEvaluator.evaluate(xacmlRequest, policyServerUrl + "/evaluate");
+    }
+
+    @Override
+    public List<EvaluationResult> evaluateMultiple(String xacmlRequest) {
+        return policyEvaluator.parseResponses(policyEvaluator.evaluateRequest(xacmlRequest, policyServerUrl + "/evaluate"));
+    }
+
+    @Override
+    public void readAllAccessLists(BiConsumer<String, List<String>> consumer) throws IOException {
+        //one line per patient: "<patient>\t<user1>;<user2>"
+        policyEvaluator.readLines("", policyServerUrl + "/accessLists", line -> {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                String users = line.substring(tab + 1);
+                consumer.accept(line.substring(0, tab), users.isEmpty() ? Collections.emptyList() : Arrays.asList(users.split(";")));
+            }
+        });
+    }
+
+    @Override
+    public synchronized void addAccessListListener(AccessListListener listener) {
+        if (accessListEvents == null) {
+            accessListEvents = new AccessListEventClient(URI.create(policyServerUrl.replaceFirst("^http", "ws") + AccessListEvents.PATH));
+            accessListEvents.addListener(listener);
+            accessListEvents.start();
+        } else {
+            accessListEvents.addListener(listener);
+        }
+    }
+
+    @Override
+    public synchronized boolean isAccessListPushActive() {
+        return accessListEvents != null && accessListEvents.isPushActive();
+    }
+
+    @Override
+    public List<String> getPatientAccessList(String userId) {
+        String result = policyEvaluator.evaluateRequest(userId, policyServerUrl + "/patientAccessList");
+
+        if (result != null && result.length() > 0) {
+            return new ArrayList<>(Arrays.asList(result.split(";")));
+        }
+        else {
+            //else return empty list
+            return new ArrayList<>();
+        }
+    }
+}
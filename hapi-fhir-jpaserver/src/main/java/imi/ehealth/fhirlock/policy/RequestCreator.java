@@ -8,6 +8,7 @@ import org.wso2.balana.utils.policy.dto.AttributesElementDTO;
 import org.wso2.balana.utils.policy.dto.RequestElementDTO;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  *  Class for creating xacml requests
@@ -19,6 +20,9 @@ public class RequestCreator {
     private String action;
     private String patientId;
 
+    //resources of a multiple decision request: type, id and patient id of each
+    private final List<String[]> resources = new ArrayList<>();
+
     //additional attribute id for request
     private final String attributeIdPatientResource = "urn:oasis:names:tc:xacml:1.0:resource:patient-id";
     private final String attributeIdResourceType = "urn:oasis:names:tc:xacml:1.0:resource:resource-type";
@@ -63,20 +67,71 @@ public class RequestCreator {
         this.resourceId = resourceId;
     }
 
+    /**
+     * add a resource for a multiple decision request, see {@link #createMultipleRequest()}
+     * @param resourceType the resource type
+     * @param resourceId the resource id
+     * @param patientId the patient id of the resource
+     */
+    public void addResource(String resourceType, String resourceId, String patientId) {
+        resources.add(new String[]{resourceType, resourceId, patientId});
+    }
+
+    /**
+     * get the number of added resources
+     * @return the number of resources of the multiple decision request
+     */
+    public int getResourceCount() {
+        return resources.size();
+    }
+
+    /**
+     * creates a multiple decision request for the user and action with one resource category per added resource
+     * The policy service returns one result per resource, in the order they were added
+     * @return the request as xml string
+     */
+    public String createMultipleRequest() {
+        ArrayList<AttributesElementDTO> attributesElementDTOs = new ArrayList<AttributesElementDTO>();
+        attributesElementDTOs.add(createActionAttributes());
+        attributesElementDTOs.add(createSubjectAttributes());
+        for (String[] resource : resources) {
+            attributesElementDTOs.add(createResourceAttributes(resource[0], resource[1], resource[2]));
+        }
+        return buildRequest(attributesElementDTOs);
+    }
+
     /**
      * creates a request for/with the submitted parameters
      * @return the request as xml string
      */
     public String createRequest() {
+        ArrayList<AttributesElementDTO> attributesElementDTOs = new ArrayList<AttributesElementDTO>();
+        attributesElementDTOs.add(createActionAttributes());
+        attributesElementDTOs.add(createSubjectAttributes());
+        attributesElementDTOs.add(createResourceAttributes(this.resourceType, this.resourceId, this.patientId));
+        return buildRequest(attributesElementDTOs);
+    }
+
+    private String buildRequest(ArrayList<AttributesElementDTO> attributesElementDTOs) {
         PolicyBuilder myPBuilder = PolicyBuilder.getInstance();
         RequestElementDTO reDTO = new RequestElementDTO();
 
         reDTO.setCombinedDecision(false);
         reDTO.setMultipleRequest(false);
         reDTO.setReturnPolicyIdList(false);
+        reDTO.setAttributesElementDTOs(attributesElementDTOs);
 
-        ArrayList<AttributesElementDTO> attributesElementDTOs = new ArrayList<AttributesElementDTO>();
-        //action
+        String myRequest = "";
+        try {
+            myRequest = myPBuilder.buildRequest(reDTO);
+        }
+        catch (PolicyBuilderException e) {
+            e.printStackTrace();
+        }
+        return myRequest;
+    }
+
+    private AttributesElementDTO createActionAttributes() {
         AttributesElementDTO action = new AttributesElementDTO();
             action.setCategory(PolicyConstants.ACTION_CATEGORY_URI);
             AttributeElementDTO att = new AttributeElementDTO();
@@ -85,52 +140,47 @@ public class RequestCreator {
                 att.setDataType(PolicyConstants.DataType.STRING);
                 att.addAttributeValue(this.action);
             action.addAttributeElementDTO(att);
-        //subject
+        return action;
+    }
+
+    private AttributesElementDTO createSubjectAttributes() {
         AttributesElementDTO subject = new AttributesElementDTO();
             subject.setCategory( PolicyConstants.SUBJECT_CATEGORY_URI);
-            att = new AttributeElementDTO();
+            AttributeElementDTO att = new AttributeElementDTO();
                 att.setAttributeId(PolicyConstants.SUBJECT_ID_DEFAULT);
                 att.setIncludeInResult(false);
                 att.setDataType(PolicyConstants.DataType.STRING);
                 att.addAttributeValue(this.user);
             subject.addAttributeElementDTO(att);
-        //resourceType (resourceType-id + resourceType-type + pat-id)
+        return subject;
+    }
+
+    //resourceType (resourceType-id + resourceType-type + pat-id)
+    private AttributesElementDTO createResourceAttributes(String resourceType, String resourceId, String patientId) {
         AttributesElementDTO resource = new AttributesElementDTO();
             resource.setCategory(PolicyConstants.RESOURCE_CATEGORY_URI);
-                att = new AttributeElementDTO();
+                AttributeElementDTO att = new AttributeElementDTO();
                 att.setAttributeId(attributeIdResourceType);
                 att.setIncludeInResult(false);
                 att.setDataType(PolicyConstants.DataType.STRING);
-                att.addAttributeValue(this.resourceType);
+                att.addAttributeValue(resourceType);
             resource.addAttributeElementDTO(att);
-                if(this.patientId != null) {
+                if(patientId != null) {
                     att = new AttributeElementDTO();
                     att.setAttributeId(attributeIdPatientResource);
                     att.setIncludeInResult(false);
                     att.setDataType(PolicyConstants.DataType.STRING);
-                    att.addAttributeValue(this.patientId);
+                    att.addAttributeValue(patientId);
                     resource.addAttributeElementDTO(att);
                 }
-                if(this.resourceId != null){
+                if(resourceId != null){
                     att = new AttributeElementDTO();
                     att.setAttributeId(PolicyConstants.RESOURCE_ID);
                     att.setIncludeInResult(false);
                     att.setDataType(PolicyConstants.DataType.STRING);
-                    att.addAttributeValue(this.resourceId);
+                    att.addAttributeValue(resourceId);
                     resource.addAttributeElementDTO(att);
                 }
-        attributesElementDTOs.add(action);
-        attributesElementDTOs.add(subject);
-        attributesElementDTOs.add(resource);
-        reDTO.setAttributesElementDTOs(attributesElementDTOs);
-
-        String myRequest = "";
-        try {
-            myRequest = myPBuilder.buildRequest(reDTO);
-        }
-        catch (PolicyBuilderException e) {
-            e.printStackTrace();
-        }
-        return myRequest;
+        return resource;
     }
 }
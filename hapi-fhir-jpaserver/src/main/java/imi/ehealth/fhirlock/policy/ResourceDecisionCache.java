@@ -0,0 +1,141 @@
+package imi.ehealth.fhirlock.policy;
+
+import imi.ehealth.fhirlock.AccessListListener;
+import imi.ehealth.fhirlock.ExpiringCache;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the decisions of the pdp for single resources in the server
+ * Keyed by user, action, resource type, resource id and patient id, so paging and repeated searches
+ * don't ask the pdp again; changed policies take effect after the time to live at the latest
+ * (changed access lists at once, if they are pushed by the pdp)
+ */
+public class ResourceDecisionCache implements AccessListListener {
+
+    private final ExpiringCache<Key, Boolean> decisions;
+
+    /**
+     * @param maxSize maximum number of cached decisions
+     * @param ttl time to live of a decision
+     * @param unit time unit of the ttl
+     */
+    public ResourceDecisionCache(int maxSize, long ttl, TimeUnit unit) {
+        this.decisions = new ExpiringCache<>(maxSize, ttl, unit);
+    }
+
+    /**
+     * get a cached decision
+     * @return true, if access to the resource is forbidden; null, if there is no cached decision
+     */
+    public Boolean getForbidden(String user, String action, String resourceType, String resourceId, String patientId) {
+        return decisions.get(new Key(user, action, resourceType, resourceId, patientId));
+    }
+
+    /**
+     * get the current generation, to be passed to {@link #putForbidden} with the decision made afterwards
+     * @return the generation
+     */
+    public long getGeneration() {
+        return decisions.getGeneration();
+    }
+
+    /**
+     * cache a decision, if no decisions were invalidated since it was requested
+     * (a change pushed during the pdp call might not be part of the decision)
+     * @param forbidden true, if access to the resource is forbidden
+     * @param requestedGeneration the generation before the decision was requested
+     */
+    public void putForbidden(String user, String action, String resourceType, String resourceId, String patientId, boolean forbidden,
+                             long requestedGeneration) {
+        decisions.putIfUnchanged(new Key(user, action, resourceType, resourceId, patientId), forbidden, 1, requestedGeneration);
+    }
+
+    /**
+     * remove the decisions of a user, e.g. after the access list of the user changed
+     * @param user the user
+     */
+    public void invalidateUser(String user) {
+        decisions.invalidateIf(key -> Objects.equals(key.user, user));
+    }
+
+    /**
+     * remove the decisions for the resources of a patient, e.g. after the policies of the patient changed
+     * @param patientId the patient id
+     */
+    public void invalidatePatient(String patientId) {
+        decisions.invalidateIf(key -> Objects.equals(key.patientId, patientId));
+    }
+
+    public void invalidateAll() {
+        decisions.invalidateAll();
+    }
+
+    @Override
+    public void accessListChanged(String patientId, List<String> users) {
+        invalidatePatient(patientId);
+    }
+
+    @Override
+    public void allAccessListsChanged() {
+        invalidateAll();
+    }
+
+    public int size() {
+        return decisions.size();
+    }
+
+    public long getHitCount() {
+        return decisions.getHitCount();
+    }
+
+    public long getMissCount() {
+        return decisions.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return decisions.getEvictionCount();
+    }
+
+    private static final class Key {
+        private final String user;
+        private final String action;
+        private final String resourceType;
+        private final String resourceId;
+        private final String patientId;
+        private final int hash;
+
+        private Key(String user, String action, String resourceType, String resourceId, String patientId) {
+            this.user = user;
+            this.action = action;
+            this.resourceType = resourceType;
+            this.resourceId = resourceId;
+            this.patientId = patientId;
+            this.hash = Objects.hash(user, action, resourceType, resourceId, patientId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash
+                    && Objects.equals(user, other.user)
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resourceType, other.resourceType)
+                    && Objects.equals(resourceId, other.resourceId)
+                    && Objects.equals(patientId, other.patientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
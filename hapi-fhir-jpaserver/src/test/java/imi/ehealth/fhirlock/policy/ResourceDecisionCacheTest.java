@@ -0,0 +1,57 @@
+package imi.ehealth.fhirlock.policy;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Decisions requested from the pdp are cached the way the interceptor does it:
+ * generation read before the pdp call, decision put with that generation afterwards
+ */
+public class ResourceDecisionCacheTest {
+
+    @Test
+    public void decisionIsCachedWithoutChange() {
+        ResourceDecisionCache cache = new ResourceDecisionCache(100, 60, TimeUnit.SECONDS);
+        long generation = cache.getGeneration();
+        cache.putForbidden("doc1", "GET", "Observation", "11", "1", false, generation);
+        assertEquals(Boolean.FALSE, cache.getForbidden("doc1", "GET", "Observation", "11", "1"));
+    }
+
+    @Test
+    public void decisionOfRunningCallIsDroppedAfterPushedChange() throws Exception {
+        ResourceDecisionCache cache = new ResourceDecisionCache(100, 60, TimeUnit.SECONDS);
+        CountDownLatch callRunning = new CountDownLatch(1);
+        CountDownLatch changePushed = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            //the pdp call: decided with the old access list, answers after the change was pushed
+            Future<?> call = executor.submit(() -> {
+                long generation = cache.getGeneration();
+                callRunning.countDown();
+                changePushed.await();
+                cache.putForbidden("doc1", "GET", "Observation", "11", "1", false, generation);
+                return null;
+            });
+
+            callRunning.await();
+            //doc1 was removed from the access list of patient 1 meanwhile
+            cache.accessListChanged("1", Collections.singletonList("doc2"));
+            changePushed.countDown();
+            call.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertNull("outdated permit cached", cache.getForbidden("doc1", "GET", "Observation", "11", "1"));
+    }
+}